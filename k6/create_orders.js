@@ -12,10 +12,20 @@ export const options = {
     "http_reqs{status:504}": ["count>1"],
   },
 };
+// share of the orders from the hot customer C001, the rest is spread over C002..C050
+const HOT_KEY_RATIO = __ENV.HOT_KEY_RATIO ? parseFloat(__ENV.HOT_KEY_RATIO) : 1.0;
+
+function customerCode() {
+  if (Math.random() < HOT_KEY_RATIO) {
+    return 'C001';
+  }
+  return 'C' + String(2 + Math.floor(Math.random() * 49)).padStart(3, '0');
+}
+
 export default function () {
   const url = 'http://localhost:9080/orders';
   const payload = JSON.stringify({
-    customerCode: 'C001',
+    customerCode: customerCode(),
     items: [
         {
             sku: 'S001',
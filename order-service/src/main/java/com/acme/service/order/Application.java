@@ -2,43 +2,97 @@ package com.acme.service.order;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoCompressor;
+import com.mongodb.ReadPreference;
+import com.mongodb.TransactionOptions;
+import com.mongodb.WriteConcern;
 import com.mongodb.reactivestreams.client.MongoClient;
 import com.mongodb.reactivestreams.client.MongoClients;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.mongodb.MongoMetricsCommandListener;
+import io.micrometer.core.instrument.binder.mongodb.MongoMetricsConnectionPoolListener;
 import io.micrometer.observation.ObservationRegistry;
 import io.micrometer.observation.ObservationTextPublisher;
 import lombok.*;
 import lombok.extern.slf4j.Slf4j;
+import org.bson.types.ObjectId;
+import org.springframework.aot.hint.annotation.RegisterReflectionForBinding;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.autoconfigure.mongo.MongoProperties;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.ReactiveMongoDatabaseFactory;
 import org.springframework.data.mongodb.ReactiveMongoTransactionManager;
 import org.springframework.data.mongodb.config.AbstractReactiveMongoConfiguration;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
 import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
 import org.springframework.data.mongodb.repository.config.EnableReactiveMongoRepositories;
+import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.stereotype.Component;
 import org.springframework.stereotype.Repository;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.reactive.TransactionalOperator;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.server.ResponseStatusException;
 import reactor.core.observability.micrometer.Micrometer;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
 
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
-import java.util.Random;
-import java.util.function.Supplier;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 @SpringBootApplication
+@EnableConfigurationProperties({Application.FaultInjectionProperties.class, Application.StockCheckProperties.class,
+        Application.TransactionProperties.class, Application.MongoClientProperties.class, Application.WarmupProperties.class})
+@RegisterReflectionForBinding({Application.Order.class, Application.OrderItem.class, Application.Outbox.class,
+        Application.OutboxEvent.class, Application.OrderWithOutbox.class, Application.StockAvailability.class})
 public class Application {
 
     public static void main(String[] args) {
-        SpringApplication.run(Application.class, args);
+        var context = SpringApplication.run(Application.class, args);
+        if (Boolean.getBoolean("app.training-run")) {
+            // AppCDS training run (see Dockerfile.cds): exit once the context is refreshed
+            System.exit(SpringApplication.exit(context));
+        }
     }
 
     @Configuration
@@ -51,13 +105,37 @@ public class Application {
 
     @Configuration
     @EnableReactiveMongoRepositories(considerNestedRepositories = true)
-    @AllArgsConstructor
+    @RequiredArgsConstructor
     class MongoConfig extends AbstractReactiveMongoConfiguration {
         private final MongoProperties mongoProperties;
+        private final TransactionProperties transactionProperties;
+        private final MongoClientProperties clientProperties;
+        private final MeterRegistry meterRegistry;
+        @Value("${order.read-preference:primary}")
+        private String readPreference;
 
+        /** Exports {@code mongodb.driver.pool.*} and {@code mongodb.driver.commands} through micrometer. */
         @Override
         public MongoClient reactiveMongoClient() {
-            return MongoClients.create(mongoProperties.getUri());
+            var settings = clientProperties.apply(MongoClientSettings.builder()
+                            .applyConnectionString(new ConnectionString(mongoProperties.getUri())))
+                    .addCommandListener(new MongoMetricsCommandListener(meterRegistry))
+                    .applyToConnectionPoolSettings(pool -> pool.addConnectionPoolListener(new MongoMetricsConnectionPoolListener(meterRegistry)))
+                    .build();
+            return MongoClients.create(settings);
+        }
+
+        /**
+         * Finds are sent with {@code order.read-preference} so that getOrder and queryOrders can be served by the rs0
+         * secondaries, and may miss an order created a moment before, until it is replicated. They are the only reads
+         * of the template: the writes and transactions go to the primary whatever it is.
+         */
+        @Bean
+        @Override
+        public ReactiveMongoTemplate reactiveMongoTemplate(ReactiveMongoDatabaseFactory databaseFactory, MappingMongoConverter mongoConverter) {
+            var template = super.reactiveMongoTemplate(databaseFactory, mongoConverter);
+            template.setReadPreference(ReadPreference.valueOf(readPreference));
+            return template;
         }
 
         @Override
@@ -65,9 +143,19 @@ public class Application {
             return mongoProperties.getDatabase();
         }
 
+        @Override
+        protected boolean autoIndexCreation() {
+            return true;
+        }
+
+        /** Only used by {@code order.write-mode: transactional}. */
         @Bean
         public ReactiveMongoTransactionManager transactionManager(ReactiveMongoDatabaseFactory reactiveMongoDatabaseFactory) {
-            return new ReactiveMongoTransactionManager(reactiveMongoDatabaseFactory);
+            var options = TransactionOptions.builder()
+                    .writeConcern(transactionProperties.writeConcern())
+                    .maxCommitTime(transactionProperties.maxCommitTime().toMillis(), TimeUnit.MILLISECONDS)
+                    .build();
+            return new ReactiveMongoTransactionManager(reactiveMongoDatabaseFactory, options);
         }
     }
 
@@ -76,17 +164,51 @@ public class Application {
     @Slf4j
     static class OrderController {
         private final OrderService service;
+        private final StockChecker stockChecker;
 
         @GetMapping("/orders/{id}")
         public Mono<Order> getOrder(@PathVariable("id") String id) {
             return service.getOrder(id);
         }
 
+        @GetMapping(value = "/orders", produces = MediaType.APPLICATION_NDJSON_VALUE)
+        public Flux<Order> queryOrders(@RequestParam(value = "customerCode", required = false) String customerCode,
+                                       @RequestParam(value = "from", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Date from,
+                                       @RequestParam(value = "to", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Date to,
+                                       @RequestParam(value = "after", required = false) String after,
+                                       @RequestParam(value = "limit", required = false) Integer limit) {
+            return service.queryOrders(new OrderQuery(customerCode, from, to, OrderCursor.parse(after), limit));
+        }
+
+        @GetMapping(value = "/orders", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+        public Flux<ServerSentEvent<Order>> streamOrders(@RequestParam(value = "customerCode", required = false) String customerCode,
+                                                         @RequestParam(value = "from", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Date from,
+                                                         @RequestParam(value = "to", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Date to,
+                                                         @RequestParam(value = "after", required = false) String after,
+                                                         @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId,
+                                                         @RequestParam(value = "limit", required = false) Integer limit) {
+            var cursor = OrderCursor.parse(lastEventId != null ? lastEventId : after);
+            return service.queryOrders(new OrderQuery(customerCode, from, to, cursor, limit))
+                    .map(o -> ServerSentEvent.builder(o).id(OrderCursor.of(o).toString()).build());
+        }
+
         @PostMapping("/orders")
         @ResponseStatus(HttpStatus.CREATED)
         public Mono<Order> createOrder(@RequestBody Order order,
                                        @RequestHeader(value = "x-request-id", required = false) String requestId) {
-            return service.createOrder(order, requestId);
+            return stockChecker.check(order.items())
+                    .then(service.createOrder(order, requestId));
+        }
+
+        @PostMapping("/orders/batch")
+        @ResponseStatus(HttpStatus.CREATED)
+        public Flux<Order> createOrders(@RequestBody List<Order> orders,
+                                        @RequestHeader(value = "x-request-id", required = false) String requestId) {
+            if (orders.isEmpty()) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "no orders to create");
+            }
+            return stockChecker.check(orders.stream().filter(o -> o.items() != null).flatMap(o -> o.items().stream()).toList())
+                    .thenMany(service.createOrders(orders, requestId != null ? requestId : UUID.randomUUID().toString()));
         }
     }
 
@@ -95,50 +217,587 @@ public class Application {
     @Slf4j
     static class OrderService {
         private final ObjectMapper MAPPER = new ObjectMapper();
-        private final Supplier<Long> latency = () -> new Random().nextLong(500);
 
         private final ObservationRegistry registry;
+        private final FaultInjector faults;
+        private final ReactiveMongoTemplate mongoTemplate;
+        private final OrderLoader orderLoader;
         private final OrderRepository orderRepository;
         private final OutboxRepository outboxRepository;
+        private final TransactionalOperator transactionalOperator;
+        @Value("${order.outbox.batch-size:100}")
+        private int outboxBatchSize;
+        @Value("${order.write-mode:embedded}")
+        private WriteMode writeMode;
+        @Value("${order.query.max-limit:1000}")
+        private int maxLimit;
 
         public Mono<Order> getOrder(String id) {
-            var lat = latency.get();
-            return orderRepository.findById(id)
+            return orderLoader.load(id)
                     .doOnSuccess(o -> log.info("get order#{} => {}", id, o))
-                    .delayElement(Duration.ofMillis(lat))
                     .name("service.order.get")
-                    .tag("latency", lat > 250 ? "high" : "low")
-                    .tap(Micrometer.observation(registry));
+                    .tap(Micrometer.observation(registry))
+                    .transform(faults.inject("get-order", id));
+        }
+
+        /**
+         * Streams the matching orders straight from the mongo cursor, ordered by (orderDate, id) so that the
+         * last emitted order is the keyset cursor of the next page. Orders without an orderDate sort first, as
+         * mongo sorts nulls before dates, and their cursor has no date. A {@code limit} is capped at
+         * {@code order.query.max-limit}.
+         */
+        public Flux<Order> queryOrders(OrderQuery q) {
+            if (q.limit() != null && q.limit() < 1) {
+                return Flux.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, "limit must be at least 1: " + q.limit()));
+            }
+            var criteria = new ArrayList<Criteria>();
+            if (q.customerCode() != null) {
+                criteria.add(Criteria.where("customerCode").is(q.customerCode()));
+            }
+            if (q.from() != null) {
+                criteria.add(Criteria.where("orderDate").gte(q.from()));
+            }
+            if (q.to() != null) {
+                criteria.add(Criteria.where("orderDate").lt(q.to()));
+            }
+            if (q.after() != null && q.after().orderDate() == null) {
+                // still among the orders without a date: the rest of them, then every dated one
+                criteria.add(new Criteria().orOperator(
+                        Criteria.where("orderDate").is(null).and("id").gt(q.after().id()),
+                        Criteria.where("orderDate").ne(null)));
+            } else if (q.after() != null) {
+                criteria.add(new Criteria().orOperator(
+                        Criteria.where("orderDate").gt(q.after().orderDate()),
+                        Criteria.where("orderDate").is(q.after().orderDate()).and("id").gt(q.after().id())));
+            }
+            var query = new Query(criteria.isEmpty() ? new Criteria() : new Criteria().andOperator(criteria))
+                    .with(Sort.by("orderDate", "id"));
+            if (q.limit() != null) {
+                query.limit(Math.min(q.limit(), maxLimit));
+            }
+            return mongoTemplate.find(query, Order.class)
+                    .doOnComplete(() -> log.debug("query orders => {}", q));
         }
 
-        @Transactional
         public Mono<Order> createOrder(Order order, String eventId) {
-            var lat = latency.get();
-            return orderRepository.save(order)
-                    .zipWhen(o -> {
-                        try {
-                            var payload = MAPPER.writeValueAsString(o);
-                            return outboxRepository.save(new Outbox(null, eventId, "order_created", "order", payload));
-                        } catch (JsonProcessingException e) {
-                            return Mono.error(e);
-                        }
-                    })
-                    .map(o -> o.getT1())
+            var write = switch (writeMode) {
+                case EMBEDDED -> Mono.fromCallable(() -> embedded(stamped(order).withId(), eventId))
+                        .flatMap(o -> mongoTemplate.insert(o))
+                        .map(OrderWithOutbox::order);
+                case TRANSACTIONAL -> orderRepository.save(stamped(order))
+                        .zipWhen(o -> {
+                            try {
+                                var payload = MAPPER.writeValueAsString(o);
+                                return outboxRepository.save(new Outbox(null, eventId, "order_created", "order", payload, null));
+                            } catch (JsonProcessingException e) {
+                                return Mono.error(e);
+                            }
+                        })
+                        .map(o -> o.getT1())
+                        .as(transactionalOperator::transactional);
+            };
+            return write
                     .doOnSuccess(o -> log.info("create new order => {}", o))
-                    .delayElement(Duration.ofMillis(lat))
                     .name("service.order.create")
-                    .tag("latency", lat > 250 ? "high" : "low")
-                    .tap(Micrometer.observation(registry));
+                    .tap(Micrometer.observation(registry))
+                    .transform(faults.inject("create-order", order.customerCode()));
+        }
+
+        /**
+         * Creates the orders with their order_created events, each keyed by {@code <requestId>-<index>}. In the
+         * embedded write mode the orders are inserted with one bulk write, each carrying its own event; in the
+         * transactional one they are saved in one transaction with one outbox document per
+         * {@code order.outbox.batch-size} orders instead of one per order, so CDC sees a single oplog entry per
+         * chunk. That document carries the events in {@code events} and is published as one {@code batch} event
+         * that order-stream fans out again.
+         */
+        public Flux<Order> createOrders(List<Order> orders, String requestId) {
+            return (writeMode == WriteMode.EMBEDDED ? insertEmbedded(orders, requestId) : saveWithOutboxes(orders, requestId))
+                    .doOnSuccess(saved -> log.info("create {} new order(s) => batch#{}", saved.size(), requestId))
+                    .name("service.order.create-batch")
+                    .tap(Micrometer.observation(registry))
+                    .transform(faults.inject("create-order", orders.get(0).customerCode()))
+                    .flatMapMany(Flux::fromIterable);
+        }
+
+        private Mono<List<Order>> insertEmbedded(List<Order> orders, String requestId) {
+            return Mono.fromCallable(() -> {
+                        var documents = new ArrayList<OrderWithOutbox>(orders.size());
+                        for (var i = 0; i < orders.size(); i++) {
+                            documents.add(embedded(stamped(orders.get(i)).withId(), requestId + "-" + i));
+                        }
+                        return documents;
+                    })
+                    .flatMapMany(documents -> mongoTemplate.insert(documents, OrderWithOutbox.class))
+                    .map(OrderWithOutbox::order)
+                    .collectList();
+        }
+
+        private Mono<List<Order>> saveWithOutboxes(List<Order> orders, String requestId) {
+            return orderRepository.saveAll(orders.stream().map(this::stamped).toList())
+                    .collectList()
+                    .delayUntil(saved -> {
+                        var outboxes = new ArrayList<Outbox>();
+                        for (var from = 0; from < saved.size(); from += outboxBatchSize) {
+                            var events = new ArrayList<OutboxEvent>();
+                            for (var i = from; i < Math.min(from + outboxBatchSize, saved.size()); i++) {
+                                try {
+                                    events.add(new OutboxEvent(requestId + "-" + i, "order_created", MAPPER.writeValueAsString(saved.get(i))));
+                                } catch (JsonProcessingException e) {
+                                    return Mono.error(e);
+                                }
+                            }
+                            var batchId = from == 0 ? requestId : requestId + "-" + from;
+                            outboxes.add(new Outbox(null, batchId, "batch", "order", null, events));
+                        }
+                        return outboxRepository.saveAll(outboxes).then();
+                    })
+                    .as(transactionalOperator::transactional);
+        }
+
+        /** The order document with its order_created event, inserted with a single-document write. */
+        private OrderWithOutbox embedded(Order order, String eventId) throws JsonProcessingException {
+            var payload = MAPPER.writeValueAsString(order);
+            return OrderWithOutbox.of(order, new Outbox(null, eventId, "order_created", "order", payload, null));
+        }
+
+        private Order stamped(Order order) {
+            return order.orderDate() != null ? order
+                    : new Order(order.id(), order.orderNo(), new Date(), order.customerCode(), order.items(), order.amount());
+        }
+    }
+
+    /**
+     * Single-flight reads: concurrent lookups of the same id share one pending result, and the ids requested within
+     * {@code order.read-coalescing.window} are fetched together with a single {@code $in} query. Should the batching
+     * pipeline ever terminate, its pending lookups fail and a new pipeline takes over; a lookup gives up after
+     * {@code order.read-coalescing.timeout} either way.
+     */
+    @Component
+    @Slf4j
+    static class OrderLoader implements DisposableBean {
+        private final Map<String, Sinks.One<Order>> inflight = new ConcurrentHashMap<>();
+        private final ReactiveMongoTemplate template;
+        private final boolean enabled;
+        private final Duration window;
+        private final int maxBatch;
+        private final Duration timeout;
+        private volatile Sinks.Many<String> requests;
+        private volatile Disposable batches;
+        private volatile boolean destroyed;
+
+        OrderLoader(ReactiveMongoTemplate template,
+                    @Value("${order.read-coalescing.enabled:true}") boolean enabled,
+                    @Value("${order.read-coalescing.window:2ms}") Duration window,
+                    @Value("${order.read-coalescing.max-batch:100}") int maxBatch,
+                    @Value("${order.read-coalescing.timeout:2s}") Duration timeout) {
+            this.template = template;
+            this.enabled = enabled;
+            this.window = window;
+            this.maxBatch = maxBatch;
+            this.timeout = timeout;
+            start();
+        }
+
+        private synchronized void start() {
+            if (destroyed) {
+                return;
+            }
+            var sink = Sinks.many().unicast().<String>onBackpressureBuffer();
+            requests = sink;
+            batches = sink.asFlux()
+                    .bufferTimeout(maxBatch, window)
+                    // batches closed by the window timer wait here while the fetches are saturated
+                    .onBackpressureBuffer()
+                    .flatMap(this::fetch)
+                    .subscribe(null, e -> {
+                        log.error("order read coalescing stopped, restarting it", e);
+                        inflight.keySet().forEach(id -> fail(id, e));
+                        start();
+                    });
+        }
+
+        public Mono<Order> load(String id) {
+            if (!enabled) {
+                return template.findById(id, Order.class);
+            }
+            // ObjectIds match whatever the case of their hex, the fetched orders answer with lowercase ones
+            var key = ObjectId.isValid(id) ? id.toLowerCase(Locale.ROOT) : id;
+            return Mono.defer(() -> {
+                var created = new AtomicBoolean();
+                var sink = inflight.computeIfAbsent(key, k -> {
+                    created.set(true);
+                    return Sinks.one();
+                });
+                if (created.get()) {
+                    try {
+                        requests.emitNext(key, Sinks.EmitFailureHandler.busyLooping(Duration.ofMillis(100)));
+                    } catch (Sinks.EmissionException e) {
+                        fail(key, e);
+                    }
+                }
+                return sink.asMono()
+                        .timeout(timeout)
+                        // the next lookup of the id starts over instead of joining a fetch that never answered
+                        .doOnError(TimeoutException.class, e -> inflight.remove(key, sink));
+            });
+        }
+
+        private Mono<Void> fetch(List<String> ids) {
+            log.debug("fetch {} coalesced order(s)", ids.size());
+            return Mono.defer(() -> template.find(Query.query(Criteria.where("id").in(ids)), Order.class)
+                            .doOnNext(o -> complete(o.id(), o))
+                            .then())
+                    .doOnSuccess(v -> ids.forEach(id -> complete(id, null)))
+                    .onErrorResume(e -> {
+                        ids.forEach(id -> fail(id, e));
+                        return Mono.empty();
+                    });
+        }
+
+        private void fail(String id, Throwable e) {
+            var sink = inflight.remove(id);
+            if (sink != null) {
+                sink.tryEmitError(e);
+            }
+        }
+
+        private void complete(String id, Order order) {
+            var sink = inflight.remove(id);
+            if (sink != null) {
+                if (order != null) {
+                    sink.tryEmitValue(order);
+                } else {
+                    sink.tryEmitEmpty();
+                }
+            }
+        }
+
+        @Override
+        public synchronized void destroy() {
+            destroyed = true;
+            batches.dispose();
+        }
+    }
+
+    /**
+     * Optional availability check against stock-service's in-memory view before an order is written, rejecting it
+     * with 409 when a sku is short. The check is advisory: the saga's allocation stays authoritative, so an order is
+     * still written when stock-service does not answer within {@code order.stock-check.timeout}.
+     */
+    @ConfigurationProperties("order.stock-check")
+    record StockCheckProperties(@DefaultValue("false") boolean enabled,
+                                @DefaultValue("http://localhost:9083") String url,
+                                @DefaultValue("50ms") Duration timeout) {}
+
+    record StockAvailability(String sku, long available) {}
+
+    @Component
+    @Slf4j
+    static class StockChecker {
+        private final StockCheckProperties properties;
+        private final WebClient webClient;
+        private final MeterRegistry meterRegistry;
+
+        StockChecker(StockCheckProperties properties, WebClient.Builder builder, MeterRegistry meterRegistry) {
+            this.properties = properties;
+            this.webClient = builder.baseUrl(properties.url()).build();
+            this.meterRegistry = meterRegistry;
+        }
+
+        public Mono<Void> check(List<OrderItem> items) {
+            if (!properties.enabled() || items == null || items.isEmpty()) {
+                return Mono.empty();
+            }
+            var quantities = items.stream()
+                    .filter(i -> i.sku() != null && i.qty() != null)
+                    .collect(Collectors.groupingBy(OrderItem::sku, Collectors.summingLong(OrderItem::qty)));
+            if (quantities.isEmpty()) {
+                return Mono.empty();
+            }
+            return webClient.get()
+                    .uri(b -> b.path("/stocks/availability").queryParam("sku", String.join(",", quantities.keySet())).build())
+                    .retrieve()
+                    .bodyToFlux(StockAvailability.class)
+                    .filter(a -> a.available() < quantities.getOrDefault(a.sku(), 0L))
+                    .map(StockAvailability::sku)
+                    .collectList()
+                    .timeout(properties.timeout())
+                    .flatMap(missing -> {
+                        if (missing.isEmpty()) {
+                            meterRegistry.counter("order.stock-check", "outcome", "available").increment();
+                            return Mono.<Void>empty();
+                        }
+                        meterRegistry.counter("order.stock-check", "outcome", "insufficient").increment();
+                        return Mono.error(new ResponseStatusException(HttpStatus.CONFLICT, "insufficient stock for sku " + String.join(", ", missing)));
+                    })
+                    .onErrorResume(e -> !(e instanceof ResponseStatusException), e -> {
+                        log.warn("stock check skipped: {}", e.toString());
+                        meterRegistry.counter("order.stock-check", "outcome", "unavailable").increment();
+                        return Mono.empty();
+                    });
+        }
+    }
+
+    @ConfigurationProperties("warmup")
+    record WarmupProperties(@DefaultValue("true") boolean enabled,
+                            @DefaultValue("2000") int iterations,
+                            @DefaultValue("16") int concurrency,
+                            @DefaultValue("30s") Duration timeout) {}
+
+    /**
+     * Warmup before readiness: readiness turns UP once the application runners have returned, after the server is
+     * started, so synthetic requests are sent to the server itself until the codecs, the handler mappings, the read
+     * coalescing and the mongo reads are compiled and the connection pool is filled. Only reads are sent: an unknown
+     * order id and the first page of a customer that has no orders, so the warmup writes no order and no outbox event.
+     */
+    @Component
+    @Slf4j
+    static class WarmupRunner implements ApplicationRunner {
+        private final WarmupProperties properties;
+        private final MeterRegistry meterRegistry;
+        private final ObjectMapper mapper;
+        private final WebClient.Builder builder;
+        private final Environment environment;
+
+        WarmupRunner(WarmupProperties properties, MeterRegistry meterRegistry, ObjectMapper mapper, WebClient.Builder builder,
+               Environment environment) {
+            this.properties = properties;
+            this.meterRegistry = meterRegistry;
+            this.mapper = mapper;
+            this.builder = builder;
+            this.environment = environment;
+        }
+
+        @Override
+        public void run(ApplicationArguments args) {
+            if (!properties.enabled()) {
+                return;
+            }
+            var webClient = builder.baseUrl("http://localhost:" + environment.getProperty("local.server.port")).build();
+            var start = System.nanoTime();
+            try {
+                Flux.range(0, properties.iterations())
+                        .flatMap(i -> Mono.fromCallable(() -> mapper.readValue(mapper.writeValueAsBytes(order(i)), Order.class))
+                                .then(webClient.get().uri("/orders/{id}", new ObjectId().toHexString())
+                                        .retrieve().bodyToMono(Order.class))
+                                .thenMany(webClient.get()
+                                        .uri(b -> b.path("/orders").queryParam("customerCode", "__warmup__").queryParam("limit", 1).build())
+                                        .accept(MediaType.APPLICATION_NDJSON)
+                                        .retrieve().bodyToFlux(Order.class))
+                                .onErrorResume(e -> Mono.empty()), properties.concurrency())
+                        .then()
+                        .block(properties.timeout());
+            } catch (RuntimeException e) {
+                // a partial warmup is still better than none: readiness is not held up any longer
+                log.warn("warmup incomplete after {}: {}", properties.timeout(), e.toString());
+            }
+            var elapsed = Duration.ofNanos(System.nanoTime() - start);
+            Timer.builder("app.warmup").register(meterRegistry).record(elapsed);
+            log.info("warmup of {} request pair(s) done in {} ms", properties.iterations(), elapsed.toMillis());
+        }
+
+        private static Order order(int i) {
+            return new Order(new ObjectId().toHexString(), "SO-" + i, new Date(), String.format("C%03d", i % 50 + 1),
+                    List.of(new OrderItem("S001", "B001", 1, 1000.0), new OrderItem("S002", "B002", 2, 500.0)), 2000.0);
+        }
+    }
+
+    /**
+     * Mongo client settings applied over those of {@code spring.data.mongodb.uri}; unset ones keep the driver
+     * defaults. The driver no longer bounds its wait queue: {@code max-wait} limits how long an operation waits for
+     * a pooled connection and {@code max-connecting} how many connections are being opened at once. The
+     * compressors are offered in order, the server picking the first one it supports.
+     */
+    @ConfigurationProperties("mongo.client")
+    record MongoClientProperties(Integer minPoolSize, Integer maxPoolSize, Duration maxWait, Duration maxIdleTime,
+                                 Integer maxConnecting, List<String> compressors, String readPreference) {
+        MongoClientSettings.Builder apply(MongoClientSettings.Builder builder) {
+            builder.applyToConnectionPoolSettings(pool -> {
+                if (minPoolSize != null) {
+                    pool.minSize(minPoolSize);
+                }
+                if (maxPoolSize != null) {
+                    pool.maxSize(maxPoolSize);
+                }
+                if (maxWait != null) {
+                    pool.maxWaitTime(maxWait.toMillis(), TimeUnit.MILLISECONDS);
+                }
+                if (maxIdleTime != null) {
+                    pool.maxConnectionIdleTime(maxIdleTime.toMillis(), TimeUnit.MILLISECONDS);
+                }
+                if (maxConnecting != null) {
+                    pool.maxConnecting(maxConnecting);
+                }
+            });
+            if (compressors != null && !compressors.isEmpty()) {
+                builder.compressorList(compressors.stream().map(MongoClientProperties::compressor).toList());
+            }
+            if (readPreference != null) {
+                builder.readPreference(ReadPreference.valueOf(readPreference));
+            }
+            return builder;
+        }
+
+        private static MongoCompressor compressor(String name) {
+            return switch (name.toLowerCase(Locale.ROOT)) {
+                case "zstd" -> MongoCompressor.createZstdCompressor();
+                case "snappy" -> MongoCompressor.createSnappyCompressor();
+                case "zlib" -> MongoCompressor.createZlibCompressor();
+                default -> throw new IllegalArgumentException("unknown mongo compressor: " + name);
+            };
         }
     }
 
     @Document(collection = "orders")
-    record Order(@Id String id, String orderNo, Date orderDate, String customerCode, List<OrderItem> items, Double amount) { }
+    @CompoundIndexes({
+            @CompoundIndex(name = "customer_order_date", def = "{'customerCode': 1, 'orderDate': 1, '_id': 1}"),
+            @CompoundIndex(name = "order_date", def = "{'orderDate': 1, '_id': 1}")
+    })
+    record Order(@Id String id, String orderNo, Date orderDate, String customerCode, List<OrderItem> items, Double amount) {
+        /** The order with an id assigned up front, for writes that need it before the insert. */
+        Order withId() {
+            return id != null ? this : new Order(new ObjectId().toHexString(), orderNo, orderDate, customerCode, items, amount);
+        }
+    }
+    /**
+     * An order written along with its event in {@code outbox} ({@code order.write-mode: embedded}); the routers
+     * pick the event out of the captured insert of the order, and reads of {@link Order} ignore the field.
+     */
+    @Document(collection = "orders")
+    record OrderWithOutbox(@Id String id, String orderNo, Date orderDate, String customerCode, List<OrderItem> items,
+                           Double amount, Outbox outbox) {
+        static OrderWithOutbox of(Order o, Outbox outbox) {
+            return new OrderWithOutbox(o.id(), o.orderNo(), o.orderDate(), o.customerCode(), o.items(), o.amount(), outbox);
+        }
+
+        Order order() {
+            return new Order(id, orderNo, orderDate, customerCode, items, amount);
+        }
+    }
+    /**
+     * {@code embedded} writes each order and its event as one document, without a transaction, and needs the
+     * connector to capture the orders collection; {@code transactional} writes the order and an outbox document in
+     * a multi-document transaction.
+     */
+    enum WriteMode { EMBEDDED, TRANSACTIONAL }
+
+    /** {@code w} is a number of members, {@code majority} or the name of a tag set of the replica set. */
+    @ConfigurationProperties("order.transaction")
+    record TransactionProperties(@DefaultValue("majority") String w, @DefaultValue("5s") Duration maxCommitTime) {
+        WriteConcern writeConcern() {
+            if (w.equalsIgnoreCase("majority")) {
+                return WriteConcern.MAJORITY;
+            }
+            return !w.isEmpty() && w.chars().allMatch(Character::isDigit) ? new WriteConcern(Integer.parseInt(w)) : new WriteConcern(w);
+        }
+    }
     record OrderItem(String sku, String barcode, Integer qty, Double amount) {}
+    record OrderQuery(String customerCode, Date from, Date to, OrderCursor after, Integer limit) {}
+    /**
+     * Keyset position of an order, rendered as {@code <orderDate epoch millis>:<order id>}, or {@code -:<order id>}
+     * for an order without an orderDate.
+     */
+    record OrderCursor(Date orderDate, String id) {
+        static OrderCursor of(Order o) {
+            return new OrderCursor(o.orderDate(), o.id());
+        }
+
+        static OrderCursor parse(String s) {
+            if (s == null || s.isBlank()) {
+                return null;
+            }
+            var i = s.indexOf(':');
+            if (i < 0) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "invalid cursor: " + s);
+            }
+            var date = s.substring(0, i);
+            try {
+                return new OrderCursor(date.equals("-") ? null : new Date(Long.parseLong(date)), s.substring(i + 1));
+            } catch (NumberFormatException e) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "invalid cursor: " + s);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return (orderDate != null ? String.valueOf(orderDate.getTime()) : "-") + ":" + id;
+        }
+    }
+    /** A single event, or a {@code batch} event whose {@code events} are fanned out downstream. */
     @Document(collection = "outboxes")
-    record Outbox(@Id String id, String eventId, String eventType, String aggregateType, String payload) {}
+    record Outbox(@Id String id, String eventId, String eventType, String aggregateType, String payload, List<OutboxEvent> events) {}
+    record OutboxEvent(String eventId, String eventType, String payload) {}
     @Repository
     interface OrderRepository extends ReactiveMongoRepository<Order, String> {}
     @Repository
     interface OutboxRepository extends ReactiveMongoRepository<Outbox, String> {}
+
+    /**
+     * Chaos-engineering fault injection, off unless {@code fault-injection.enabled} is set. Each endpoint can be
+     * given a latency distribution, an error rate and the keys it is restricted to; injected latency is recorded
+     * as {@code fault.injected.latency} so the service observations only measure real work.
+     */
+    @ConfigurationProperties("fault-injection")
+    record FaultInjectionProperties(boolean enabled, Map<String, Fault> endpoints) {
+        FaultInjectionProperties {
+            endpoints = endpoints != null ? endpoints : Map.of();
+        }
+    }
+
+    record Fault(LatencyDistribution distribution, Duration min, Duration max, Duration mean, double errorRate, Set<String> keys) {
+        Fault {
+            distribution = distribution != null ? distribution : LatencyDistribution.NONE;
+            min = min != null ? min : Duration.ZERO;
+            max = max != null && max.compareTo(min) > 0 ? max : min;
+            mean = mean != null ? mean : Duration.ZERO;
+            keys = keys != null ? keys : Set.of();
+        }
+
+        boolean targets(String key) {
+            return keys.isEmpty() || keys.contains(key);
+        }
+
+        Duration nextLatency(ThreadLocalRandom random) {
+            return switch (distribution) {
+                case NONE -> Duration.ZERO;
+                case FIXED -> mean;
+                case UNIFORM -> Duration.ofMillis(random.nextLong(min.toMillis(), max.toMillis() + 1));
+                case EXPONENTIAL -> {
+                    var millis = min.toMillis() + (long) (-mean.toMillis() * Math.log(1 - random.nextDouble()));
+                    yield Duration.ofMillis(max.compareTo(min) > 0 ? Math.min(millis, max.toMillis()) : millis);
+                }
+            };
+        }
+    }
+
+    enum LatencyDistribution { NONE, FIXED, UNIFORM, EXPONENTIAL }
+
+    @Component
+    @RequiredArgsConstructor
+    static class FaultInjector {
+        private final FaultInjectionProperties properties;
+        private final MeterRegistry meterRegistry;
+
+        public <T> Function<Mono<T>, Mono<T>> inject(String endpoint, String key) {
+            var fault = properties.enabled() ? properties.endpoints().get(endpoint) : null;
+            if (fault == null || !fault.targets(key)) {
+                return mono -> mono;
+            }
+            // drawn per subscription, so that a retried call gets a fault of its own
+            return mono -> Mono.defer(() -> {
+                var random = ThreadLocalRandom.current();
+                var latency = fault.nextLatency(random);
+                var source = random.nextDouble() < fault.errorRate()
+                        ? Mono.<T>error(() -> new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "injected fault: " + endpoint)).doOnSubscribe(s -> meterRegistry.counter("fault.injected.errors", "endpoint", endpoint).increment())
+                        : mono;
+                if (latency.isZero()) {
+                    return source;
+                }
+                return Mono.delay(latency)
+                        .doOnNext(t -> meterRegistry.timer("fault.injected.latency", "endpoint", endpoint).record(latency))
+                        .then(source);
+            });
+        }
+    }
 }
@@ -0,0 +1,92 @@
+package com.acme.service.order;
+
+import com.acme.service.order.Application.Order;
+import com.acme.service.order.Application.OrderItem;
+import com.acme.service.order.Application.OrderService;
+import org.HdrHistogram.Histogram;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Orders/sec and create latency of {@code POST /orders}' write path, {@link OrderService#createOrder}, in each
+ * {@code order.write-mode} against a replica set: order-service is booted once per mode and {@code clients} callers
+ * create orders one after the other for {@code seconds}, after a warmup of a fifth of that.
+ *
+ * <pre>
+ * docker-compose -f docker/docker-compose.yml up -d mongo1 mongo2 mongo3
+ * mvn -pl order-service test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.acme.service.order.OrderWriteBenchmark -Dexec.args="64 30 transactional,embedded" \
+ *     -Dmongo.uri="mongodb://localhost:30001,localhost:30002,localhost:30003/order?replicaSet=rs0"
+ * </pre>
+ */
+public class OrderWriteBenchmark {
+
+    public static void main(String[] args) {
+        var clients = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        var seconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        var modes = args.length > 2 ? List.of(args[2].split(",")) : List.of("transactional", "embedded");
+
+        for (var mode : modes) {
+            var context = new SpringApplicationBuilder(Application.class)
+                    .properties(Map.of(
+                            "server.port", "0",
+                            "order.write-mode", mode,
+                            "spring.data.mongodb.uri", System.getProperty("mongo.uri",
+                                    "mongodb://localhost:30001,localhost:30002,localhost:30003/order?replicaSet=rs0"),
+                            "logging.level.root", "warn",
+                            "logging.level.com.acme", "warn",
+                            "management.tracing.enabled", "false"))
+                    .run();
+            try {
+                var service = context.getBean(OrderService.class);
+                run(service, clients, Math.max(1, seconds / 5));
+                var histogram = run(service, clients, seconds);
+                System.out.printf("%-13s %3d clients | %,8.0f orders/s | p50 %6.2f ms p99 %6.2f ms p999 %6.2f ms max %7.2f ms%n",
+                        mode, clients, histogram.getTotalCount() / (double) seconds,
+                        histogram.getValueAtPercentile(50) / 1e3, histogram.getValueAtPercentile(99) / 1e3,
+                        histogram.getValueAtPercentile(99.9) / 1e3, histogram.getMaxValue() / 1e3);
+            } finally {
+                context.close();
+            }
+        }
+    }
+
+    /** Latencies in microseconds. */
+    static Histogram run(OrderService service, int clients, int seconds) {
+        var histogram = new Histogram(3);
+        var errors = new AtomicLong();
+        var deadline = System.nanoTime() + Duration.ofSeconds(seconds).toNanos();
+        Flux.range(0, clients)
+                .flatMap(client -> Mono.defer(() -> {
+                            var start = System.nanoTime();
+                            return service.createOrder(order(client), UUID.randomUUID().toString())
+                                    .doOnSuccess(o -> {
+                                        synchronized (histogram) {
+                                            histogram.recordValue((System.nanoTime() - start) / 1_000);
+                                        }
+                                    })
+                                    .onErrorResume(e -> {
+                                        errors.incrementAndGet();
+                                        return Mono.empty();
+                                    });
+                        })
+                        .repeat(() -> System.nanoTime() < deadline), clients)
+                .blockLast();
+        if (errors.get() > 0) {
+            System.out.printf("%,d failed write(s)%n", errors.get());
+        }
+        return histogram;
+    }
+
+    static Order order(int client) {
+        return new Order(null, null, null, String.format("C%03d", client % 50 + 1),
+                List.of(new OrderItem("S001", "B001", 1, 1000.0)), 1000.0);
+    }
+}
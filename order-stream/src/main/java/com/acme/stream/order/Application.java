@@ -1,52 +1,127 @@
 package com.acme.stream.order;
 
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.confluent.kafka.serializers.KafkaAvroDeserializer;
+import io.confluent.kafka.serializers.KafkaAvroSerializer;
+import io.confluent.kafka.serializers.subject.TopicNameStrategy;
+import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.observation.ObservationRegistry;
 import io.micrometer.observation.ObservationTextPublisher;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.aot.hint.MemberCategory;
+import org.springframework.aot.hint.RuntimeHints;
+import org.springframework.aot.hint.RuntimeHintsRegistrar;
+import org.springframework.aot.hint.annotation.RegisterReflectionForBinding;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.http.HttpHeaders;
+import org.springframework.context.annotation.ImportRuntimeHints;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.data.mongodb.repository.config.EnableMongoRepositories;
 import org.springframework.http.MediaType;
 import org.springframework.kafka.annotation.DltHandler;
 import org.springframework.kafka.annotation.KafkaListener;
 import org.springframework.kafka.annotation.RetryableTopic;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.listener.BatchListenerFailedException;
+import org.springframework.kafka.listener.DeadLetterPublishingRecoverer;
 import org.springframework.retry.annotation.Backoff;
+import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.annotation.Scheduled;
 
 import com.acme.kafka.outbox.avro.EventKey;
 import com.acme.kafka.outbox.avro.EventValue;
+import com.acme.stream.order.EventLanes.LaneDispatcher;
+import com.acme.stream.order.FairScheduling.FairScheduler;
+import com.acme.stream.order.SagaDrain.SagaHandoff;
+import com.acme.stream.order.SagaDrain.SagaHandoffs;
+import com.acme.stream.order.SagaMessaging.SagaCommands;
+import com.acme.stream.order.SagaTable.Phase;
+import com.acme.stream.order.SagaTable.StepStatus;
+import com.acme.stream.order.SagaTracking.SagaTracker;
+import com.acme.stream.order.serde.SpecificAvroDeserializer;
+import com.acme.stream.order.serde.SpecificAvroSerializer;
 import org.springframework.stereotype.Component;
+import org.springframework.stereotype.Repository;
 import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
 import reactor.core.observability.micrometer.Micrometer;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.retry.Retry;
 
+import java.io.IOException;
 import java.time.Duration;
-import java.util.Arrays;
+import java.time.Instant;
 import java.util.Date;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.Random;
-import java.util.function.Supplier;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 @SpringBootApplication
+@EnableConfigurationProperties({Application.FaultInjectionProperties.class, Application.CompensationProperties.class,
+        DltReplay.DltReplayProperties.class, SagaMessaging.SagaMessagingProperties.class,
+        SagaTracking.SagaTrackingProperties.class, FairScheduling.SchedulerProperties.class,
+        StartupWarmup.WarmupProperties.class, EventLanes.LaneProperties.class, SagaDrain.DrainProperties.class})
+@EnableScheduling
+@RegisterReflectionForBinding({Application.Order.class, Application.OrderItem.class, Application.OutboxEvent.class,
+        Application.Payment.class, Application.Stock.class, Application.StockItem.class})
+@ImportRuntimeHints(Application.NativeHints.class)
 @Slf4j
 public class Application {
     static final ObjectMapper MAPPER = new ObjectMapper();
 
-    @Value("${remote-url.payment-service}")
-    static String paymentUrl;
-
-    @Value("${remote-url.stock-service}")
-    static String stockUrl;
-
     public static void main(String[] args) {
-        SpringApplication.run(Application.class, args);
+        var context = SpringApplication.run(Application.class, args);
+        if (Boolean.getBoolean("app.training-run")) {
+            // AppCDS training run (see Dockerfile.cds): exit once the context is refreshed
+            System.exit(SpringApplication.exit(context));
+        }
+    }
+
+    /**
+     * Hints for types that are only reached reflectively: the Avro specific records are instantiated by
+     * {@code SpecificData} and the serdes are created by Kafka from their class names.
+     */
+    static class NativeHints implements RuntimeHintsRegistrar {
+        @Override
+        public void registerHints(RuntimeHints hints, ClassLoader classLoader) {
+            hints.reflection()
+                    .registerType(EventKey.class, MemberCategory.values())
+                    .registerType(EventValue.class, MemberCategory.values())
+                    .registerType(KafkaAvroSerializer.class, MemberCategory.INVOKE_PUBLIC_CONSTRUCTORS)
+                    .registerType(KafkaAvroDeserializer.class, MemberCategory.INVOKE_PUBLIC_CONSTRUCTORS)
+                    .registerType(TopicNameStrategy.class, MemberCategory.INVOKE_PUBLIC_CONSTRUCTORS)
+                    .registerType(SpecificAvroSerializer.class, MemberCategory.INVOKE_PUBLIC_CONSTRUCTORS)
+                    .registerType(SpecificAvroDeserializer.class, MemberCategory.INVOKE_PUBLIC_CONSTRUCTORS);
+            hints.resources().registerPattern("avro/*.avsc");
+        }
     }
 
     @Configuration
@@ -57,147 +132,686 @@ public class Application {
         }
     }
 
+    @Configuration
+    @EnableMongoRepositories(considerNestedRepositories = true)
+    class MongoConfig {
+    }
+
     @Component
-    @RequiredArgsConstructor
     static class StreamHandler {
-        private final Supplier<Long> latency = () -> new Random().nextLong(500);
+        static final String TOPIC = "order.outbox";
+        static final String RETRY_TOPIC = "order.outbox-retry";
 
         private final ObservationRegistry registry;
+        private final FaultInjector faults;
+        private final CreateOrderSagaWorkflow saga;
+        private final FairScheduler scheduler;
+        private final LaneDispatcher lanes;
+        private final SagaHandoffs handoffs;
+        private final DeadLetterPublishingRecoverer retries;
+        private final int batchConcurrency;
+        private final Duration pollTimeout;
 
-        @RetryableTopic(attempts = "5", backoff = @Backoff(delay = 2_000, maxDelay = 10_000, multiplier = 2))
-        @KafkaListener(id = "order-outbox", topics = "order.outbox")
-        public void listen(ConsumerRecord<EventKey, EventValue> record) throws Exception {
+        StreamHandler(ObservationRegistry registry, FaultInjector faults, CreateOrderSagaWorkflow saga,
+                      FairScheduler scheduler, LaneDispatcher lanes, SagaHandoffs handoffs, KafkaTemplate<Object, Object> template,
+                      @Value("${saga.batch-concurrency:8}") int batchConcurrency,
+                      @Value("${saga.poll-timeout:4m}") Duration pollTimeout) {
+            this.registry = registry;
+            this.faults = faults;
+            this.saga = saga;
+            this.scheduler = scheduler;
+            this.lanes = lanes;
+            this.handoffs = handoffs;
+            this.retries = new DeadLetterPublishingRecoverer(template, (record, e) -> new TopicPartition(RETRY_TOPIC, -1));
+            this.batchConcurrency = batchConcurrency;
+            this.pollTimeout = pollTimeout;
+        }
+
+        /**
+         * Handles the records of a poll ({@code spring.kafka.consumer.max-poll-records}) together, so that the lanes
+         * and the fair scheduler choose among all of them, and acknowledges the poll once every record was handled.
+         * A batch record is handled as a record per event, up to {@code saga.batch-concurrency} of them at a time.
+         * A record that failed does not hold back the others: it is forwarded to {@code order.outbox-retry}, in
+         * offset order, and retried there with backoff by {@link #retry}; of a batch only the events that failed are
+         * forwarded, each as a record of its own, so that the retries do not run the sagas of the others again. So
+         * that the poll is done well within {@code max.poll.interval.ms}, and the partitions are not rebalanced with
+         * their sagas running here, the records still running after {@code saga.poll-timeout} are cancelled and
+         * forwarded as well.
+         */
+        @KafkaListener(id = "order-outbox", topics = TOPIC, batch = "true", autoStartup = "#{!${warmup.enabled:true}}")
+        public void listen(List<ConsumerRecord<EventKey, EventValue>> records) {
+            log.info("receiving {} outbox msg(s)", records.size());
+            var expanded = records.stream().map(this::expand).toList();
+            var results = Flux.fromIterable(expanded)
+                    .flatMap(events -> Flux.fromIterable(events)
+                            .flatMap(event -> handle(event)
+                                    .then(Mono.just(Optional.<Throwable>empty()))
+                                    .onErrorResume(e -> Mono.just(Optional.of(e)))
+                                    .map(error -> Map.entry(event, error)), batchConcurrency), expanded.size())
+                    .take(pollTimeout)
+                    .collectMap(Map.Entry::getKey, Map.Entry::getValue, IdentityHashMap::new)
+                    .block();
+            for (var events : expanded) {
+                for (var event : events) {
+                    var result = results.get(event);
+                    if (result == null) {
+                        forward(event, new TimeoutException("still running after " + pollTimeout));
+                    } else if (result.isPresent()) {
+                        forward(event, result.get());
+                    }
+                }
+            }
+        }
+
+        /**
+         * The records of the events of a batch record, keyed by their own event ids, or the record itself; a batch
+         * that cannot be read stays whole, to fail and be forwarded as it is.
+         */
+        private List<ConsumerRecord<EventKey, EventValue>> expand(ConsumerRecord<EventKey, EventValue> record) {
+            if (!"batch".equals(eventType(record))) {
+                return List.of(record);
+            }
+            List<OutboxEvent> events;
+            try {
+                events = OutboxEvent.expand(String.valueOf(record.key().getEventId()), record.value());
+            } catch (IOException e) {
+                return List.of(record);
+            }
+            log.info("fan out batch#{} => {} event(s)", record.key().getEventId(), events.size());
+            return events.stream()
+                    .map(e -> new ConsumerRecord<>(record.topic(), record.partition(), record.offset(), record.timestamp(),
+                            record.timestampType(), -1, -1, new EventKey(e.eventId()),
+                            new EventValue(e.eventType(), record.value().getTimestamp(), e.payload()), record.headers(),
+                            record.leaderEpoch()))
+                    .toList();
+        }
+
+        /**
+         * The failed records of {@code order.outbox}, retried with backoff and then parked on the DLT. They are handled
+         * one after the other, so a poll of them is kept small enough to be done within {@code max.poll.interval.ms}.
+         */
+        @RetryableTopic(attempts = "4", backoff = @Backoff(delay = 2_000, maxDelay = 10_000, multiplier = 2),
+                retryTopicSuffix = "-backoff")
+        @KafkaListener(id = "order-outbox-retry", topics = RETRY_TOPIC, autoStartup = "#{!${warmup.enabled:true}}",
+                properties = "max.poll.records=${saga.retry-poll-records:10}")
+        public void retry(ConsumerRecord<EventKey, EventValue> record) {
+            handle(record).then().block();
+        }
+
+        @DltHandler
+        public void listenDlt(ConsumerRecord<EventKey, EventValue> record) {
+            log.info("receiving dlt msg => topics: {}, key: {}, value: {}", record.topic(), record.key(), record.value());
+        }
+
+        /**
+         * Handles a record of {@code order.outbox}, of its retry topics or of a DLT replay, and emits the outcome of
+         * each saga it ran.
+         */
+        Flux<SagaOutcome> handle(ConsumerRecord<EventKey, EventValue> record) {
             log.info("receiving outbox msg => topics: {}, key: {}, value: {}", record.topic(), record.key(), record.value());
             var eventId = String.valueOf(record.key().getEventId());
+            var source = new TopicPartition(record.topic(), record.partition());
 
             // TODO: Initial and start saga (synchonized flow via rest-api)
             // do payment -> reserve stock -> generate delivery order
             // if failed, revert payment (if exist) -> revert reserved stock (if exist)
-            var eventType = String.valueOf(record.value().getEventType());
-            switch (eventType) {
-                case "order_created":
-                    var order = MAPPER.readValue(record.value().getPayload().toString(), Order.class);
-                    onOrderCreated(eventId, order);
-                    break;
-                default:
-                    log.info("default event_type => {}", eventType);
+            // saga.messaging.enabled: the saga steps go over command/reply topics instead (see SagaMessaging)
+            var eventType = eventType(record);
+            return switch (eventType) {
+                case "order_created" -> Mono.fromCallable(() -> MAPPER.readValue(record.value().getPayload().toString(), Order.class))
+                        .flatMap(order -> orderCreated(eventId, order, source))
+                        .flux();
+                case "batch" -> Mono.fromCallable(() -> OutboxEvent.expand(eventId, record.value()))
+                        .flatMapMany(events -> onBatch(eventId, events, source));
+                default -> unhandled(eventType).flux();
+            };
+        }
+
+        private static String eventType(ConsumerRecord<EventKey, EventValue> record) {
+            return String.valueOf(record.value().getEventType());
+        }
+
+        private void forward(ConsumerRecord<EventKey, EventValue> record, Throwable error) {
+            log.warn("event#{} failed, forwarded to {}: {}", record.key().getEventId(), RETRY_TOPIC, error.toString());
+            try {
+                retries.accept(record, error instanceof Exception e ? e : new IllegalStateException(error));
+            } catch (RuntimeException e) {
+                // the records before it are committed and the poll is taken up again from this one
+                throw new BatchListenerFailedException("could not forward event#" + record.key().getEventId(), e, record);
             }
+        }
 
-            // TODO: Enhance saga (asynchonized flow via messaging)
+        /**
+         * Runs the events of a batch with up to {@code saga.batch-concurrency} sagas in flight, each given the
+         * steps timeout of a single event. Only the batch records the retry topics or the DLT held from before
+         * {@link #listen} forwarded failed events one by one get here; such a batch fails, and is retried as a whole,
+         * if any of its events failed.
+         */
+        private Flux<SagaOutcome> onBatch(String batchId, List<OutboxEvent> events, TopicPartition source) {
+            log.info("fan out batch#{} => {} event(s)", batchId, events.size());
+            return Flux.fromIterable(events)
+                    .flatMapDelayError(e -> {
+                        if (!"order_created".equals(e.eventType())) {
+                            return unhandled(e.eventType());
+                        }
+                        return Mono.fromCallable(() -> MAPPER.readValue(e.payload(), Order.class))
+                                .flatMap(order -> orderCreated(e.eventId(), order, source));
+                    }, batchConcurrency, 1);
         }
 
-        @DltHandler
-        public void listenDlt(ConsumerRecord<EventKey, EventValue> record) {
-            log.info("receiving dlt msg => topics: {}, key: {}, value: {}", record.topic(), record.key(), record.value());
+        /**
+         * Sagas wait for their turn between customers first, then for a slot of the order_created lane, so that lane
+         * slots are only taken by sagas about to run; a saga handed off by another instance is resumed from its
+         * handoff. Waiting sagas count as in flight for the drain.
+         */
+        private Mono<SagaOutcome> orderCreated(String eventId, Order order, TopicPartition source) {
+            return handoffs.run(eventId, source, handoff ->
+                    scheduler.submit(order.customerCode(), lanes.submit("order_created", run(eventId, order, handoff))));
         }
 
-        public void onOrderCreated(String eventId, Order order) {
-            var lat = latency.get();
-            var saga = new CreateOrderSagaWorkflow();
-            Mono.just(order)
+        /**
+         * The saga itself, whose steps are given {@link CreateOrderSagaWorkflow#STEPS_TIMEOUT} from the moment it
+         * starts, whatever it waited for before; its rollbacks run outside of that.
+         */
+        private Mono<SagaOutcome> run(String eventId, Order order, SagaHandoff handoff) {
+            return saga.execute(eventId, order, handoff)
                     .name("stream.order.created")
-                    .tag("latency", lat > 250 ? "high" : "low")
                     .tap(Micrometer.observation(registry))
-                    .delayUntil(o -> saga.execute(eventId, o))
-                    .block(Duration.ofSeconds(5));
+                    .transform(faults.inject("order-created", order.customerCode()));
+        }
+
+        /** Event types without a handler yet still take a slot of their own lane, where their handler will run. */
+        private Mono<SagaOutcome> unhandled(String eventType) {
+            return lanes.submit(eventType, Mono.<SagaOutcome>fromRunnable(() -> log.info("default event_type => {}", eventType)));
+        }
+    }
+
+    @Component
+    static class PaymentStep implements SagaStep<Payment, Order> {
+        private final WebClient webClient;
+        private final String paymentUrl;
+        private final SagaCommands commands;
+        private final WireFormat wireFormat;
+
+        PaymentStep(WebClient.Builder builder, @Value("${remote-url.payment-service}") String paymentUrl, SagaCommands commands,
+                    WireFormat wireFormat) {
+            this.webClient = builder.baseUrl(paymentUrl).build();
+            this.paymentUrl = paymentUrl;
+            this.commands = commands;
+            this.wireFormat = wireFormat;
+        }
+
+        @Override
+        public String name() {
+            return "payment";
+        }
+
+        @Override
+        public Class<Payment> type() {
+            return Payment.class;
+        }
+
+        @Override
+        public String id(Payment o) {
+            return o.id;
+        }
+
+        @Override
+        public Payment bind(Order o) {
+            return new Payment(null, null, null, o.customerCode, o.orderNo, o.amount);
+        }
+
+        @Override
+        public Payment withId(Payment o, String id) {
+            return new Payment(id, o.paymentNo, o.paymentDate, o.customerCode, o.refNo, o.amount);
+        }
+
+        @Override
+        public Mono<Payment> execute(String eventId, Payment o) {
+            if (commands.enabled()) {
+                return commands.execute(name(), eventId, o, Payment.class);
+            }
+            log.info("creating a payment => url: {}/payments, payload: {}", paymentUrl, o);
+            return wireFormat.post(webClient, name(), "/payments", eventId, o, Payment.class);
+        }
+
+        @Override
+        public Mono<Payment> rollback(String eventId, Payment o) {
+            if (commands.enabled()) {
+                return commands.rollback(name(), eventId, o);
+            }
+            log.info("rolling back payment => url: {}/payments/{}", paymentUrl, o.id);
+            return webClient.delete()
+                    .uri(String.format("/payments/%s", o.id))
+                    .header("x-request-id", eventId)
+                    .retrieve()
+                    .toBodilessEntity()
+                    .thenReturn(o);
         }
     }
 
+    @Component
+    static class StockStep implements SagaStep<Stock, Order> {
+        private final WebClient webClient;
+        private final String stockUrl;
+        private final SagaCommands commands;
+        private final WireFormat wireFormat;
+
+        StockStep(WebClient.Builder builder, @Value("${remote-url.stock-service}") String stockUrl, SagaCommands commands,
+                  WireFormat wireFormat) {
+            this.webClient = builder.baseUrl(stockUrl).build();
+            this.stockUrl = stockUrl;
+            this.commands = commands;
+            this.wireFormat = wireFormat;
+        }
+
+        @Override
+        public String name() {
+            return "stock";
+        }
+
+        @Override
+        public Class<Stock> type() {
+            return Stock.class;
+        }
+
+        @Override
+        public String id(Stock o) {
+            return o.id;
+        }
+
+        @Override
+        public Stock bind(Order o) {
+            return new Stock(null, o.orderNo, o.orderDate, o.customerCode, o.items.stream()
+                    .map(i -> new StockItem(i.sku, i.barcode, i.qty))
+                    .collect(Collectors.toList()));
+        }
+
+        @Override
+        public Stock withId(Stock o, String id) {
+            return new Stock(id, o.orderNo, o.orderDate, o.customerCode, o.items);
+        }
+
+        @Override
+        public Mono<Stock> execute(String eventId, Stock o) {
+            if (commands.enabled()) {
+                return commands.execute(name(), eventId, o, Stock.class);
+            }
+            log.info("allocating stock => url: {}/stocks, payload: {}", stockUrl, o);
+            return wireFormat.post(webClient, name(), "/stocks", eventId, o, Stock.class);
+        }
+
+        @Override
+        public Mono<Stock> rollback(String eventId, Stock o) {
+            if (commands.enabled()) {
+                return commands.rollback(name(), eventId, o);
+            }
+            log.info("rolling back stock => url: {}/stocks/{}", stockUrl, o.id);
+            return webClient.delete()
+                    .uri(String.format("/stocks/%s", o.id))
+                    .header("x-request-id", eventId)
+                    .retrieve()
+                    .toBodilessEntity()
+                    .thenReturn(o);
+        }
+    }
+
+    /**
+     * Body format of the saga calls over http. {@code saga.wire-format: smile} posts Smile, Jackson's binary JSON,
+     * and accepts it back, which payment-service and stock-service negotiate with their default codecs; a service
+     * answering 415 is called with JSON from then on. {@code json} only speaks JSON.
+     */
+    @Component
+    static class WireFormat {
+        static final MediaType SMILE = MediaType.parseMediaType("application/x-jackson-smile");
+
+        private final MediaType preferred;
+        private final MeterRegistry meterRegistry;
+        private final Map<String, MediaType> fallbacks = new ConcurrentHashMap<>();
+
+        WireFormat(@Value("${saga.wire-format:smile}") String format, MeterRegistry meterRegistry) {
+            this.preferred = switch (format) {
+                case "smile" -> SMILE;
+                case "json" -> MediaType.APPLICATION_JSON;
+                default -> throw new IllegalArgumentException("unknown saga.wire-format: " + format);
+            };
+            this.meterRegistry = meterRegistry;
+        }
+
+        public <T> Mono<T> post(WebClient webClient, String step, String uri, String eventId, T body, Class<T> type) {
+            var format = fallbacks.getOrDefault(step, preferred);
+            return webClient.post()
+                    .uri(uri)
+                    .contentType(format)
+                    .accept(format, MediaType.APPLICATION_JSON)
+                    .header("x-request-id", eventId)
+                    .bodyValue(body)
+                    .retrieve()
+                    .bodyToMono(type)
+                    .onErrorResume(WebClientResponseException.UnsupportedMediaType.class, e -> {
+                        if (format.equals(MediaType.APPLICATION_JSON)) {
+                            return Mono.error(e);
+                        }
+                        // rejected before it was handled: safe to send again
+                        log.warn("{} step does not accept {}, falling back to json", step, format);
+                        fallbacks.put(step, MediaType.APPLICATION_JSON);
+                        meterRegistry.counter("saga.wire-format.fallback", "step", step).increment();
+                        return post(webClient, step, uri, eventId, body, type);
+                    });
+        }
+    }
+
+    @Component
+    @RequiredArgsConstructor
     static class CreateOrderSagaWorkflow implements SagaWorkflow<Order> {
-        static final List<SagaStep> steps = Arrays.asList(
-                new SagaStep<Payment, Order>() {
-                    static final WebClient webClient = WebClient.builder()
-                            .baseUrl(paymentUrl)
-                            .build();
-
-                    @Override
-                    public Payment bind(Order o) {
-                        return new Payment(null, null, null, o.customerCode, o.orderNo, o.amount);
-                    }
+        /** A step still unanswered this long after the saga started failed; the steps start together. */
+        static final Duration STEPS_TIMEOUT = Duration.ofSeconds(5);
 
-                    @Override
-                    public Mono<Payment> execute(String eventId, Payment o) {
-                        log.info("creating a payment => url: {}/payments, payload: {}", paymentUrl, o);
-                        return webClient.post()
-                                .uri("/payments")
-                                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
-                                .header("x-request-id", eventId)
-                                .body(Mono.just(o), Payment.class)
-                                .retrieve()
-                                .bodyToMono(Payment.class);
-                    }
+        private final List<SagaStep<?, Order>> steps;
+        private final CompensationEngine compensations;
+        private final SagaTracker tracker;
+        private final MeterRegistry meterRegistry;
 
-                    @Override
-                    public Mono<Payment> rollback(String eventId, Payment o) {
-                        log.info("rolling back payment => url: {}/payments/{}", paymentUrl, o.id);
-                        return webClient.delete()
-                                .uri(String.format("/payments/%s", o.id))
-                                .header("x-request-id", eventId)
-                                .retrieve()
-                                .bodyToMono(Payment.class);
-                    }
-                },
-                new SagaStep<Stock, Order>() {
-                    static final WebClient webClient = WebClient.builder()
-                            .baseUrl(stockUrl)
-                            .build();
-
-                    @Override
-                    public Stock bind(Order o) {
-                        return new Stock(null, o.orderNo, o.orderDate, o.customerCode, o.items.stream()
-                                        .map(i -> new StockItem(i.sku, i.barcode, i.qty))
-                                        .collect(Collectors.toList()));
-                    }
+        @Override
+        public Mono<SagaOutcome> execute(String eventId, Order order) {
+            return execute(eventId, order, null);
+        }
 
-                    @Override
-                    public Mono<Stock> execute(String eventId, Stock o) {
-                        log.info("allocating stock => url: {}/stocks, payload: {}", stockUrl, o);
-                        return webClient.post()
-                                .uri("/stocks")
-                                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
-                                .header("x-request-id", eventId)
-                                .body(Mono.just(o), Stock.class)
-                                .retrieve()
-                                .bodyToMono(Stock.class);
-                    }
+        /**
+         * Runs the saga, or resumes the one another instance handed off: its done steps are not called again, and a
+         * saga handed off while compensating only rolls them back. A step that answers without a result, or not
+         * within {@link #STEPS_TIMEOUT}, failed. Once started, the rollbacks run to the end, done or parked, even if
+         * the saga is cancelled meanwhile: they are not cut short with their steps left as they were.
+         */
+        public Mono<SagaOutcome> execute(String eventId, Order order, SagaHandoff handoff) {
+            var compensating = handoff != null && handoff.phase() == Phase.COMPENSATING;
+            return Mono.fromRunnable(() -> tracker.started(eventId))
+                    .thenMany(Flux.fromIterable(steps))
+                    .flatMap(s -> execute(eventId, s, order, handoff))
+                    .collectList()
+                    .flatMap(outcomes -> {
+                        if (!compensating && outcomes.stream().allMatch(StepOutcome::succeeded)) {
+                            return Mono.just(SagaOutcome.COMPLETED);
+                        }
+                        outcomes.stream()
+                                .filter(o -> !o.succeeded())
+                                .forEach(o -> log.warn("saga step {} failed for event#{}: {}", o.step().name(), eventId, o.error().toString()));
+                        tracker.compensating(eventId);
+                        var compensation = compensations.compensate(eventId, outcomes.stream().filter(StepOutcome::succeeded).toList())
+                                .cache();
+                        compensation.subscribe(null, e -> log.error("compensation of event#{} failed: {}", eventId, e.toString()));
+                        return compensation.thenReturn(SagaOutcome.COMPENSATED);
+                    })
+                    .doOnNext(outcome -> {
+                        meterRegistry.counter("saga.outcome", "outcome", outcome.tag()).increment();
+                        tracker.outcome(eventId, outcome);
+                    })
+                    .doFinally(s -> tracker.finished(eventId));
+        }
+
+        private <T> Mono<StepOutcome> execute(String eventId, SagaStep<T, Order> step, Order order, SagaHandoff handoff) {
+            var request = step.bind(order);
+            var handedOff = handoff != null ? handoff.step(step.name()) : null;
+            if (handedOff != null && handedOff.done()) {
+                tracker.step(eventId, step.name(), StepStatus.DONE, handedOff.id());
+                return Mono.just(new StepOutcome(step, handedOff.id() != null ? step.withId(request, handedOff.id()) : request, null));
+            }
+            if (handoff != null && handoff.phase() == Phase.COMPENSATING) {
+                return Mono.empty();
+            }
+            return step.execute(eventId, request)
+                    .timeout(STEPS_TIMEOUT)
+                    .switchIfEmpty(Mono.error(() -> new IllegalStateException(step.name() + " step answered without a result")))
+                    .map(r -> new StepOutcome(step, r, null))
+                    .onErrorResume(e -> Mono.just(new StepOutcome(step, null, e)))
+                    .doOnNext(o -> tracker.step(eventId, step.name(), o.succeeded() ? StepStatus.DONE : StepStatus.FAILED,
+                            o.succeeded() ? step.id(step.type().cast(o.result())) : null));
+        }
+    }
+
+    /** How a saga ended: all of its steps done, or the done ones rolled back (or parked) after a step failed. */
+    public enum SagaOutcome {
+        COMPLETED, COMPENSATED;
+
+        String tag() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    record StepOutcome(SagaStep<?, ?> step, Object result, Throwable error) {
+        boolean succeeded() {
+            return error == null;
+        }
+    }
+
+    @ConfigurationProperties("saga.compensation")
+    record CompensationProperties(@DefaultValue("1s") Duration timeout,
+                                  @DefaultValue("2") int maxRetries,
+                                  @DefaultValue("100ms") Duration backoff,
+                                  @DefaultValue("0.5") double jitter,
+                                  @DefaultValue Worker worker) {
+        record Worker(@DefaultValue("true") boolean enabled,
+                      @DefaultValue("20") int maxAttempts,
+                      @DefaultValue("30s") Duration backoff,
+                      @DefaultValue("1h") Duration maxBackoff,
+                      @DefaultValue("100") int batchSize,
+                      @DefaultValue("5m") Duration lease) {}
+    }
+
+    /**
+     * Runs the rollbacks of the completed saga steps in parallel, each with its own timeout and jittered retries.
+     * A rollback that still fails is parked in the {@code compensations} collection for {@link CompensationWorker}.
+     */
+    @Component
+    static class CompensationEngine {
+        private final CompensationProperties properties;
+        private final CompensationRepository repository;
+        private final MeterRegistry meterRegistry;
+        private final Map<String, SagaStep<?, ?>> steps;
 
-                    @Override
-                    public Mono<Stock> rollback(String eventId, Stock o) {
-                        log.info("rolling back stock => url: {}/stocks/{}", stockUrl, o.id);
-                        return webClient.delete()
-                                .uri(String.format("/stocks/%s", o.id))
-                                .header("x-request-id", eventId)
-                                .retrieve()
-                                .bodyToMono(Stock.class);
+        CompensationEngine(CompensationProperties properties, CompensationRepository repository,
+                           MeterRegistry meterRegistry, List<SagaStep<?, ?>> steps) {
+            this.properties = properties;
+            this.repository = repository;
+            this.meterRegistry = meterRegistry;
+            this.steps = steps.stream().collect(Collectors.toMap(SagaStep::name, Function.identity()));
+        }
+
+        public Mono<Void> compensate(String eventId, List<StepOutcome> completed) {
+            return Flux.fromIterable(completed)
+                    .flatMap(c -> rollback(eventId, c.step(), c.result())
+                            .doOnSuccess(v -> count(c.step(), "compensated"))
+                            .onErrorResume(e -> park(eventId, c.step(), c.result(), e)))
+                    .then();
+        }
+
+        public SagaStep<?, ?> step(String name) {
+            return steps.get(name);
+        }
+
+        @SuppressWarnings("unchecked")
+        public <T> Mono<Void> rollback(String eventId, SagaStep<T, ?> step, Object payload) {
+            return Mono.defer(() -> step.rollback(eventId, (T) payload))
+                    .timeout(properties.timeout())
+                    .retryWhen(Retry.backoff(properties.maxRetries(), properties.backoff()).jitter(properties.jitter()))
+                    .then();
+        }
+
+        private Mono<Void> park(String eventId, SagaStep<?, ?> step, Object payload, Throwable e) {
+            log.error("parking compensation of {} for event#{}: {}", step.name(), eventId, e.toString());
+            return Mono.fromCallable(() -> repository.save(new Compensation(null, eventId, step.name(),
+                            MAPPER.writeValueAsString(payload), 0, e.toString(), Instant.now().plus(properties.worker().backoff()))))
+                    .subscribeOn(Schedulers.boundedElastic())
+                    .doOnSuccess(c -> count(step, "parked"))
+                    .then();
+        }
+
+        void count(SagaStep<?, ?> step, String outcome) {
+            meterRegistry.counter("saga.compensation", "step", step.name(), "outcome", outcome).increment();
+        }
+    }
+
+    /**
+     * Drains the parked compensations with an exponential backoff between attempts. A compensation that is still
+     * failing after {@code saga.compensation.worker.max-attempts} is kept with no next attempt for manual repair.
+     * <p>
+     * Every instance runs the worker: a compensation is claimed before its rollback by moving its next attempt
+     * {@code saga.compensation.worker.lease} ahead in one findAndModify, so that the other instances skip it, and
+     * taken up again by any of them once the lease ran out if its claimer died.
+     */
+    @Component
+    @RequiredArgsConstructor
+    static class CompensationWorker {
+        private final CompensationProperties properties;
+        private final CompensationEngine engine;
+        private final CompensationRepository repository;
+        private final MongoTemplate mongoTemplate;
+        private final LaneDispatcher lanes;
+
+        @Scheduled(fixedDelayString = "${saga.compensation.worker.interval:PT10S}")
+        public void drain() {
+            var worker = properties.worker();
+            if (!worker.enabled()) {
+                return;
+            }
+            for (var i = 0; i < worker.batchSize(); i++) {
+                var c = claim(worker.lease());
+                if (c == null) {
+                    return;
+                }
+                var step = engine.step(c.step());
+                if (step == null) {
+                    log.error("unknown saga step {} in compensation#{}", c.step(), c.id());
+                    continue;
+                }
+                try {
+                    lanes.submit("compensation", engine.rollback(c.eventId(), step, MAPPER.readValue(c.payload(), step.type()))).block();
+                    repository.delete(c);
+                    engine.count(step, "recovered");
+                } catch (Exception e) {
+                    var attempts = c.attempts() + 1;
+                    if (attempts >= worker.maxAttempts()) {
+                        log.error("giving up compensation of {} for event#{} after {} attempts: {}", c.step(), c.eventId(), attempts, e.toString());
+                        engine.count(step, "abandoned");
+                        repository.save(new Compensation(c.id(), c.eventId(), c.step(), c.payload(), attempts, e.toString(), null));
+                    } else {
+                        var backoff = worker.backoff().multipliedBy(1L << Math.min(attempts, 16));
+                        var next = Instant.now().plus(backoff.compareTo(worker.maxBackoff()) < 0 ? backoff : worker.maxBackoff());
+                        repository.save(new Compensation(c.id(), c.eventId(), c.step(), c.payload(), attempts, e.toString(), next));
                     }
                 }
-        );
+            }
+        }
 
-        @Override
-        public Mono<Void> execute(String eventId, Order order) {
-            return Flux.fromIterable(steps)
-                    .flatMap(s -> s.execute(eventId, s.bind(order)))
-                    .collectList()
-                    .onErrorResume(e -> Flux.fromIterable(steps)
-                            .flatMap(s -> s.rollback(eventId, s.bind(order)))
-                            .then()
-                    );
+        private Compensation claim(Duration lease) {
+            var now = Instant.now();
+            var due = Query.query(Criteria.where("nextAttemptAt").lte(now)).with(Sort.by("nextAttemptAt"));
+            return mongoTemplate.findAndModify(due, Update.update("nextAttemptAt", now.plus(lease)),
+                    FindAndModifyOptions.options().returnNew(true), Compensation.class);
         }
     }
 
     public interface SagaWorkflow<T> {
-        Mono<Void> execute(String eventId, T t);
+        Mono<SagaOutcome> execute(String eventId, T t);
+    }
+
+    /** Told how each saga ended, once it did; in-process harnesses use it to time sagas end to end. */
+    public interface SagaListener {
+        void finished(String eventId, SagaOutcome outcome);
     }
 
     public interface SagaStep<T, V> {
+        String name();
+        Class<T> type();
+        /** The id the remote service gave the step's result, tracked while the saga is in flight. */
+        String id(T t);
         T bind(V v);
+        /** The bound request as the remote service returned it under {@code id}, for a step done before a handoff. */
+        T withId(T t, String id);
         Mono<T> execute(String eventId, T t);
         Mono<T> rollback(String eventId, T t);
     }
 
     record Order(String id, String orderNo, Date orderDate, String customerCode, List<OrderItem> items, Double amount) {}
+    /** An event of a {@code batch} outbox event, whose payload is the JSON array of its events. */
+    record OutboxEvent(String eventId, String eventType, String payload) {
+        static List<OutboxEvent> expand(String eventId, EventValue value) throws IOException {
+            if (!"batch".equals(String.valueOf(value.getEventType()))) {
+                return List.of(new OutboxEvent(eventId, String.valueOf(value.getEventType()), String.valueOf(value.getPayload())));
+            }
+            return MAPPER.readValue(value.getPayload().toString(), new TypeReference<List<OutboxEvent>>() {});
+        }
+    }
     record OrderItem(String sku, String barcode, Integer qty, Double amount) {}
     record Payment(String id, String paymentNo, Date paymentDate, String customerCode, String refNo, Double amount) {}
     record Stock(String id, String orderNo, Date orderDate, String customerCode, List<StockItem> items) {}
     record StockItem(String sku, String barcode, Integer qty) {}
+    @Document(collection = "compensations")
+    record Compensation(@Id String id, String eventId, String step, String payload, int attempts, String lastError, Instant nextAttemptAt) {}
+    @Repository
+    interface CompensationRepository extends MongoRepository<Compensation, String> {
+    }
+
+    /** Faults of the {@code order-created} saga, keyed by customerCode; see the chaos profile. */
+    @ConfigurationProperties("fault-injection")
+    record FaultInjectionProperties(boolean enabled, Map<String, Fault> endpoints) {
+        FaultInjectionProperties {
+            endpoints = endpoints != null ? endpoints : Map.of();
+        }
+    }
+
+    record Fault(LatencyDistribution distribution, Duration min, Duration max, Duration mean, double errorRate, Set<String> keys) {
+        Fault {
+            distribution = distribution != null ? distribution : LatencyDistribution.NONE;
+            min = min != null ? min : Duration.ZERO;
+            max = max != null && max.compareTo(min) > 0 ? max : min;
+            mean = mean != null ? mean : Duration.ZERO;
+            keys = keys != null ? keys : Set.of();
+        }
+
+        boolean targets(String key) {
+            return keys.isEmpty() || keys.contains(key);
+        }
+
+        Duration nextLatency(ThreadLocalRandom random) {
+            return switch (distribution) {
+                case NONE -> Duration.ZERO;
+                case FIXED -> mean;
+                case UNIFORM -> Duration.ofMillis(random.nextLong(min.toMillis(), max.toMillis() + 1));
+                case EXPONENTIAL -> {
+                    var millis = min.toMillis() + (long) (-mean.toMillis() * Math.log(1 - random.nextDouble()));
+                    yield Duration.ofMillis(max.compareTo(min) > 0 ? Math.min(millis, max.toMillis()) : millis);
+                }
+            };
+        }
+    }
+
+    enum LatencyDistribution { NONE, FIXED, UNIFORM, EXPONENTIAL }
+
+    @Component
+    @RequiredArgsConstructor
+    static class FaultInjector {
+        private final FaultInjectionProperties properties;
+        private final MeterRegistry meterRegistry;
+
+        public <T> Function<Mono<T>, Mono<T>> inject(String endpoint, String key) {
+            var fault = properties.enabled() ? properties.endpoints().get(endpoint) : null;
+            if (fault == null || !fault.targets(key)) {
+                return mono -> mono;
+            }
+            return mono -> Mono.defer(() -> {
+                var random = ThreadLocalRandom.current();
+                var latency = fault.nextLatency(random);
+                var source = random.nextDouble() < fault.errorRate()
+                        ? Mono.<T>error(() -> new IllegalStateException("injected fault: " + endpoint)).doOnSubscribe(s -> meterRegistry.counter("fault.injected.errors", "endpoint", endpoint).increment())
+                        : mono;
+                if (latency.isZero()) {
+                    return source;
+                }
+                return Mono.delay(latency)
+                        .doOnNext(t -> meterRegistry.timer("fault.injected.latency", "endpoint", endpoint).record(latency))
+                        .then(source);
+            });
+        }
+    }
 }
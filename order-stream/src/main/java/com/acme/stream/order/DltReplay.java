@@ -0,0 +1,328 @@
+package com.acme.stream.order;
+
+import com.acme.kafka.outbox.avro.EventKey;
+import com.acme.kafka.outbox.avro.EventValue;
+import com.acme.stream.order.Application.SagaOutcome;
+import com.acme.stream.order.Application.StreamHandler;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+import org.springframework.http.HttpStatus;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Replays the dead-lettered outbox events through the saga, at a bounded rate and concurrency so that a large
+ * backlog does not overload payment-service and stock-service. A job is started from the admin endpoint or by
+ * {@code dlt-replay.cron}; it reads the DLT with its own consumer group, up to the end the DLT had when the job
+ * started, and hands each record to {@link StreamHandler#handle} like a live one: through the lanes, the fair
+ * scheduler and the saga handoffs.
+ * <p>
+ * Records the job skips, and those whose replay failed, are parked on the DLT again. After each polled batch the
+ * job commits, per partition, up to the last record of an unbroken run of replayed or parked ones, so the next job
+ * resumes at the first record this one could not account for.
+ */
+@Slf4j
+class DltReplay {
+
+    @ConfigurationProperties("dlt-replay")
+    record DltReplayProperties(@DefaultValue("order.outbox-retry-dlt") String topic,
+                               @DefaultValue("order-outbox-dlt-replay") String groupId,
+                               @DefaultValue("20") double ratePerSecond,
+                               @DefaultValue("4") int concurrency,
+                               @DefaultValue("10s") Duration sagaTimeout,
+                               @DefaultValue("3") int idlePolls) {
+        DltReplayProperties {
+            if (!(ratePerSecond > 0)) {
+                throw new IllegalArgumentException("dlt-replay.rate-per-second must be above 0: " + ratePerSecond);
+            }
+            if (concurrency < 1) {
+                throw new IllegalArgumentException("dlt-replay.concurrency must be at least 1: " + concurrency);
+            }
+        }
+    }
+
+    /** Filter and limits of a replay job; unset values fall back to {@link DltReplayProperties}. */
+    record ReplayRequest(Set<String> eventTypes, Instant from, Instant to, Double ratePerSecond, Integer concurrency, Long maxRecords) {
+        static final ReplayRequest ALL = new ReplayRequest(null, null, null, null, null, null);
+
+        ReplayRequest {
+            if (ratePerSecond != null && !(ratePerSecond > 0)) {
+                throw new IllegalArgumentException("ratePerSecond must be above 0: " + ratePerSecond);
+            }
+            if (concurrency != null && concurrency < 1) {
+                throw new IllegalArgumentException("concurrency must be at least 1: " + concurrency);
+            }
+            if (maxRecords != null && maxRecords < 0) {
+                throw new IllegalArgumentException("maxRecords must not be negative: " + maxRecords);
+            }
+        }
+
+        boolean matches(EventValue value) {
+            if (eventTypes != null && !eventTypes.isEmpty() && !eventTypes.contains(String.valueOf(value.getEventType()))) {
+                return false;
+            }
+            var ts = Instant.ofEpochMilli(value.getTimestamp());
+            return (from == null || !ts.isBefore(from)) && (to == null || ts.isBefore(to));
+        }
+    }
+
+    /**
+     * Counted per record: {@code replayed}, handled with its sagas completed; {@code compensated}, handled with a saga
+     * rolled back after a step failed again; {@code failed} and {@code skipped}, parked on the DLT again.
+     */
+    record ReplayProgress(String id, String status, ReplayRequest request, long read, long replayed, long compensated,
+                          long failed, long skipped, Instant startedAt, Instant finishedAt) {}
+
+    static class ReplayJob {
+        final String id = UUID.randomUUID().toString();
+        final ReplayRequest request;
+        final Instant startedAt = Instant.now();
+        final AtomicLong read = new AtomicLong();
+        final AtomicLong replayed = new AtomicLong();
+        final AtomicLong compensated = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final AtomicLong skipped = new AtomicLong();
+        volatile String status = "running";
+        volatile boolean cancelled;
+        volatile Instant finishedAt;
+
+        ReplayJob(ReplayRequest request) {
+            this.request = request;
+        }
+
+        boolean running() {
+            return finishedAt == null;
+        }
+
+        ReplayProgress progress() {
+            return new ReplayProgress(id, status, request, read.get(), replayed.get(), compensated.get(), failed.get(),
+                    skipped.get(), startedAt, finishedAt);
+        }
+    }
+
+    @Component
+    static class DltReplayService implements DisposableBean {
+        private final DltReplayProperties properties;
+        private final ConsumerFactory<?, ?> consumerFactory;
+        private final KafkaTemplate<Object, Object> template;
+        private final StreamHandler handler;
+        private final MeterRegistry meterRegistry;
+        private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> new Thread(r, "dlt-replay"));
+        private final Map<String, ReplayJob> jobs = new ConcurrentHashMap<>();
+        private volatile ReplayJob current;
+
+        DltReplayService(DltReplayProperties properties, ConsumerFactory<?, ?> consumerFactory,
+                         KafkaTemplate<Object, Object> template, StreamHandler handler, MeterRegistry meterRegistry) {
+            this.properties = properties;
+            this.consumerFactory = consumerFactory;
+            this.template = template;
+            this.handler = handler;
+            this.meterRegistry = meterRegistry;
+        }
+
+        public synchronized ReplayJob start(ReplayRequest request) {
+            if (current != null && current.running()) {
+                throw new ResponseStatusException(HttpStatus.CONFLICT, "replay job#" + current.id + " is still running");
+            }
+            var job = new ReplayJob(request != null ? request : ReplayRequest.ALL);
+            jobs.put(job.id, job);
+            current = job;
+            executor.execute(() -> run(job));
+            return job;
+        }
+
+        public ReplayJob job(String id) {
+            return jobs.get(id);
+        }
+
+        @Scheduled(cron = "${dlt-replay.cron:-}")
+        public void scheduled() {
+            if (current == null || !current.running()) {
+                start(ReplayRequest.ALL);
+            }
+        }
+
+        private void run(ReplayJob job) {
+            var request = job.request;
+            var rate = request.ratePerSecond() != null ? request.ratePerSecond() : properties.ratePerSecond();
+            var concurrency = request.concurrency() != null ? request.concurrency() : properties.concurrency();
+            var period = Duration.ofNanos((long) (1_000_000_000 / rate));
+            var limit = request.maxRecords() != null ? request.maxRecords() : Long.MAX_VALUE;
+
+            log.info("start dlt replay job#{} => {}, rate: {}/s, concurrency: {}", job.id, request, rate, concurrency);
+            var overrides = new Properties();
+            overrides.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
+            overrides.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
+            // a polled batch must be replayed well within max.poll.interval.ms
+            overrides.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, (int) Math.max(1, Math.min(500, rate * 30)));
+            var parkFailed = new AtomicBoolean();
+            try (var consumer = consumerFactory.createConsumer(properties.groupId(), null, "-" + job.id, overrides)) {
+                // the records parked again by this job land past these offsets and are left to the next job
+                var end = consumer.endOffsets(consumer.partitionsFor(properties.topic()).stream()
+                        .map(p -> new TopicPartition(p.topic(), p.partition()))
+                        .toList());
+                consumer.subscribe(List.of(properties.topic()));
+                var idle = 0;
+                var complete = true;
+                while (complete && !job.cancelled && job.read.get() < limit && idle < properties.idlePolls()
+                        && !caughtUp(consumer, end)) {
+                    var records = consumer.poll(Duration.ofSeconds(1));
+                    idle = records.isEmpty() ? idle + 1 : 0;
+                    var handled = Flux.fromIterable(records)
+                            .filter(r -> r.offset() < end.getOrDefault(new TopicPartition(r.topic(), r.partition()), 0L))
+                            .takeWhile(r -> !job.cancelled && job.read.get() < limit)
+                            .doOnNext(r -> job.read.incrementAndGet())
+                            // matching records are paced to the rate, skipped ones go straight back to the DLT
+                            .concatMap(r -> accept(job, r)
+                                    ? Mono.delay(period).thenReturn(replay(job, r, parkFailed))
+                                    : Mono.just(park(job, r, parkFailed)))
+                            .flatMap(replayed -> replayed, concurrency)
+                            .collect(Collectors.toSet())
+                            .block();
+                    var offsets = new HashMap<TopicPartition, OffsetAndMetadata>();
+                    for (var partition : records.partitions()) {
+                        for (var record : records.records(partition)) {
+                            if (record.offset() >= end.getOrDefault(partition, 0L)) {
+                                break;
+                            }
+                            if (!handled.contains(record)) {
+                                // cancelled, over the limit, or could not be parked: the next job starts here
+                                complete = false;
+                                break;
+                            }
+                            offsets.put(partition, new OffsetAndMetadata(record.offset() + 1));
+                        }
+                    }
+                    if (!offsets.isEmpty()) {
+                        consumer.commitSync(offsets);
+                    }
+                }
+                job.status = parkFailed.get() ? "failed" : job.cancelled ? "cancelled" : "completed";
+            } catch (Exception e) {
+                log.error("dlt replay job#{} failed", job.id, e);
+                job.status = "failed";
+            } finally {
+                job.finishedAt = Instant.now();
+                log.info("finish dlt replay job#{} => {}", job.id, job.progress());
+            }
+        }
+
+        /** Whether the consumer went through the records its partitions had when the job started. */
+        private static boolean caughtUp(Consumer<?, ?> consumer, Map<TopicPartition, Long> end) {
+            var assigned = consumer.assignment();
+            return !assigned.isEmpty() && assigned.stream().allMatch(p -> consumer.position(p) >= end.getOrDefault(p, 0L));
+        }
+
+        private boolean accept(ReplayJob job, ConsumerRecord<?, ?> record) {
+            if (record.value() instanceof EventValue value && record.key() instanceof EventKey && job.request.matches(value)) {
+                return true;
+            }
+            count(job.skipped, "skipped");
+            return false;
+        }
+
+        /** Emits the record once it was handled, or parked again after its replay failed. */
+        @SuppressWarnings("unchecked")
+        private Mono<ConsumerRecord<?, ?>> replay(ReplayJob job, ConsumerRecord<?, ?> record, AtomicBoolean parkFailed) {
+            return handler.handle((ConsumerRecord<EventKey, EventValue>) record)
+                    .collectList()
+                    .timeout(properties.sagaTimeout())
+                    .<ConsumerRecord<?, ?>>map(outcomes -> {
+                        if (outcomes.contains(SagaOutcome.COMPENSATED)) {
+                            count(job.compensated, "compensated");
+                        } else {
+                            count(job.replayed, "replayed");
+                        }
+                        return record;
+                    })
+                    .onErrorResume(e -> {
+                        log.warn("replay of event#{} failed: {}", ((EventKey) record.key()).getEventId(), e.toString());
+                        count(job.failed, "failed");
+                        return park(job, record, parkFailed);
+                    });
+        }
+
+        /** Appends the record to the DLT again, with its headers; emits it once written. */
+        private Mono<ConsumerRecord<?, ?>> park(ReplayJob job, ConsumerRecord<?, ?> record, AtomicBoolean parkFailed) {
+            return Mono.fromFuture(() -> template.send(new ProducerRecord<>(properties.topic(), null, record.key(), record.value(), record.headers())))
+                    .<ConsumerRecord<?, ?>>thenReturn(record)
+                    .onErrorResume(e -> {
+                        log.error("dlt replay job#{} could not park {}-{}@{} again: {}", job.id, record.topic(), record.partition(),
+                                record.offset(), e.toString());
+                        parkFailed.set(true);
+                        return Mono.empty();
+                    });
+        }
+
+        private void count(AtomicLong counter, String outcome) {
+            counter.incrementAndGet();
+            meterRegistry.counter("dlt.replay.records", "outcome", outcome).increment();
+        }
+
+        @Override
+        public void destroy() {
+            if (current != null) {
+                current.cancelled = true;
+            }
+            executor.shutdown();
+        }
+    }
+
+    @RestController
+    @RequiredArgsConstructor
+    static class DltReplayController {
+        private final DltReplayService service;
+
+        @PostMapping("/admin/dlt/replay")
+        @ResponseStatus(HttpStatus.ACCEPTED)
+        public Mono<ReplayProgress> replay(@RequestBody(required = false) ReplayRequest request) {
+            return Mono.fromCallable(() -> service.start(request).progress());
+        }
+
+        @GetMapping("/admin/dlt/replay/{id}")
+        public Mono<ReplayProgress> progress(@PathVariable("id") String id) {
+            return Mono.justOrEmpty(service.job(id))
+                    .map(ReplayJob::progress)
+                    .switchIfEmpty(Mono.error(new ResponseStatusException(HttpStatus.NOT_FOUND)));
+        }
+
+        @DeleteMapping("/admin/dlt/replay/{id}")
+        public Mono<ReplayProgress> cancel(@PathVariable("id") String id) {
+            return Mono.justOrEmpty(service.job(id))
+                    .doOnNext(job -> job.cancelled = true)
+                    .map(ReplayJob::progress)
+                    .switchIfEmpty(Mono.error(new ResponseStatusException(HttpStatus.NOT_FOUND)));
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.acme.stream.order;
+
+import com.acme.stream.order.SlotDispatch.SlotDispatcher;
+import com.acme.stream.order.SlotDispatch.SlotQueue;
+import com.acme.stream.order.SlotDispatch.Task;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A lane per event type, so that events of one type do not wait behind a backlog of another: each lane has its own
+ * bounded queue, its own cap of running events and a priority. Whenever a slot of {@code saga.lanes.max-concurrency}
+ * frees up it goes to the highest priority lane with an event waiting and room under its cap, the oldest waiting
+ * event first between lanes of the same priority. The lanes only order the events this instance already holds.
+ */
+class EventLanes {
+
+    @ConfigurationProperties("saga.lanes")
+    record LaneProperties(@DefaultValue("true") boolean enabled,
+                          @DefaultValue("64") int maxConcurrency,
+                          @DefaultValue("0") int priority,
+                          @DefaultValue("64") int concurrency,
+                          @DefaultValue("1000") int maxQueued,
+                          Map<String, LanePolicy> types) {
+        LaneProperties {
+            types = types != null ? types : Map.of();
+        }
+
+        LanePolicy policy(String type) {
+            var policy = types.get(type);
+            return new LanePolicy(
+                    policy != null && policy.priority() != null ? policy.priority() : priority,
+                    policy != null && policy.concurrency() != null ? policy.concurrency() : concurrency,
+                    policy != null && policy.maxQueued() != null ? policy.maxQueued() : maxQueued);
+        }
+    }
+
+    record LanePolicy(Integer priority, Integer concurrency, Integer maxQueued) {}
+
+    /** Thrown when the lane of an event type already has its {@code max-queued} events waiting. */
+    static class LaneRejectedException extends RuntimeException {
+        LaneRejectedException(String type) {
+            super("too many events queued in lane " + type);
+        }
+    }
+
+    /** The lanes are the queues of a {@link SlotDispatcher}, keyed by event type. */
+    @Component
+    static class LaneDispatcher extends SlotDispatcher<Lane> {
+        private final LaneProperties properties;
+        private final MeterRegistry meterRegistry;
+
+        LaneDispatcher(LaneProperties properties, MeterRegistry meterRegistry) {
+            super(meterRegistry, "saga.lane", "lane", properties.maxConcurrency());
+            this.properties = properties;
+            this.meterRegistry = meterRegistry;
+        }
+
+        public <T> Mono<T> submit(String type, Mono<T> event) {
+            if (!properties.enabled()) {
+                return event;
+            }
+            return enqueue(type != null ? type : "", event);
+        }
+
+        @Override
+        protected Lane newQueue(String type) {
+            var policy = properties.policy(type);
+            return new Lane(type, policy.priority(), policy.concurrency(), policy.maxQueued());
+        }
+
+        @Override
+        protected RuntimeException rejected(Lane lane) {
+            count(lane, "rejected");
+            return new LaneRejectedException(lane.key);
+        }
+
+        @Override
+        protected <T> Mono<T> observe(Lane lane, Mono<T> event) {
+            return event
+                    .doOnSuccess(v -> count(lane, "completed"))
+                    .doOnError(e -> count(lane, "failed"));
+        }
+
+        /** Gives the free slots by priority, the oldest waiting event first between lanes of the same priority. */
+        @Override
+        protected void dispatch(List<Task> started) {
+            while (slotFree()) {
+                Lane next = null;
+                for (var lane : queues.values()) {
+                    var head = lane.tasks.peekFirst();
+                    if (head == null || lane.running >= lane.concurrency) {
+                        continue;
+                    }
+                    if (next == null || lane.priority > next.priority
+                            || lane.priority == next.priority && head.enqueuedAt - next.tasks.peekFirst().enqueuedAt < 0) {
+                        next = lane;
+                    }
+                }
+                if (next == null) {
+                    break;
+                }
+                startNext(next, started);
+            }
+        }
+
+        private void count(Lane lane, String outcome) {
+            meterRegistry.counter("saga.lane.events", "lane", lane.key, "outcome", outcome).increment();
+        }
+    }
+
+    static final class Lane extends SlotQueue {
+        final int priority;
+
+        Lane(String type, int priority, int concurrency, int maxQueued) {
+            super(type, concurrency, maxQueued);
+            this.priority = priority;
+        }
+    }
+}
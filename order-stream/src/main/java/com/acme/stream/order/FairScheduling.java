@@ -0,0 +1,154 @@
+package com.acme.stream.order;
+
+import com.acme.stream.order.SlotDispatch.SlotDispatcher;
+import com.acme.stream.order.SlotDispatch.SlotQueue;
+import com.acme.stream.order.SlotDispatch.Task;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fair scheduling of the sagas between customers, so that a burst from one large customer does not take every saga
+ * slot. Sagas wait in a queue per {@code customerCode} and are started by deficit round-robin: each customer with
+ * queued sagas gets {@code weight} starts per round, within its own concurrency cap and the global one. The
+ * {@code order-outbox} listener submits every record of a poll at once, so that the sagas of a capped customer wait
+ * in its queue while those of the other customers in the poll go ahead.
+ */
+class FairScheduling {
+
+    @ConfigurationProperties("saga.scheduler")
+    record SchedulerProperties(@DefaultValue("true") boolean enabled,
+                               @DefaultValue("64") int maxConcurrency,
+                               @DefaultValue("8") int customerConcurrency,
+                               @DefaultValue("1000") int maxQueued,
+                               Map<String, CustomerPolicy> customers) {
+        SchedulerProperties {
+            customers = customers != null ? customers : Map.of();
+        }
+
+        int weight(String customer) {
+            var policy = customers.get(customer);
+            return policy != null && policy.weight() != null ? policy.weight() : 1;
+        }
+
+        int concurrency(String customer) {
+            var policy = customers.get(customer);
+            return policy != null && policy.concurrency() != null ? policy.concurrency() : customerConcurrency;
+        }
+    }
+
+    record CustomerPolicy(Integer weight, Integer concurrency) {}
+
+    /** Thrown when a customer already has {@code saga.scheduler.max-queued} sagas waiting. */
+    static class SchedulerRejectedException extends RuntimeException {
+        SchedulerRejectedException(String customer) {
+            super("too many sagas queued for customer " + customer);
+        }
+    }
+
+    /** The customer queues are the queues of a {@link SlotDispatcher}, keyed by {@code customerCode}. */
+    @Component
+    static class FairScheduler extends SlotDispatcher<CustomerQueue> {
+        private final SchedulerProperties properties;
+        private final MeterRegistry meterRegistry;
+        // customers with queued sagas that may start one, in round-robin order
+        private final ArrayDeque<CustomerQueue> ring = new ArrayDeque<>();
+
+        FairScheduler(SchedulerProperties properties, MeterRegistry meterRegistry) {
+            super(meterRegistry, "saga.scheduler", "customer", properties.maxConcurrency());
+            this.properties = properties;
+            this.meterRegistry = meterRegistry;
+        }
+
+        public <T> Mono<T> submit(String customer, Mono<T> saga) {
+            if (!properties.enabled()) {
+                return saga;
+            }
+            return enqueue(customer != null ? customer : "", saga);
+        }
+
+        @Override
+        protected CustomerQueue newQueue(String customer) {
+            return new CustomerQueue(customer, properties.weight(customer), properties.concurrency(customer),
+                    properties.maxQueued());
+        }
+
+        @Override
+        protected RuntimeException rejected(CustomerQueue queue) {
+            meterRegistry.counter("saga.scheduler.rejected", "customer", queue.key).increment();
+            return new SchedulerRejectedException(queue.key);
+        }
+
+        @Override
+        protected void onQueued(CustomerQueue queue) {
+            if (!queue.inRing && queue.running < queue.concurrency) {
+                enter(queue);
+            }
+        }
+
+        @Override
+        protected void onReleased(CustomerQueue queue) {
+            if (!queue.inRing && !queue.tasks.isEmpty() && queue.running < queue.concurrency) {
+                enter(queue);
+            }
+        }
+
+        private void enter(CustomerQueue queue) {
+            queue.inRing = true;
+            queue.fresh = true;
+            ring.addLast(queue);
+        }
+
+        /** Deficit round-robin over the ring. */
+        @Override
+        protected void dispatch(List<Task> started) {
+            while (slotFree()) {
+                var queue = ring.peekFirst();
+                if (queue == null) {
+                    break;
+                }
+                if (queue.fresh) {
+                    queue.deficit += queue.weight;
+                    queue.fresh = false;
+                }
+                while (slotFree() && queue.deficit > 0 && queue.running < queue.concurrency && startNext(queue, started)) {
+                    queue.deficit--;
+                }
+                if (!slotFree() && queue.deficit > 0 && !queue.tasks.isEmpty() && queue.running < queue.concurrency) {
+                    // out of global slots in the middle of its turn: it resumes the turn on the next release
+                    break;
+                }
+                ring.pollFirst();
+                if (queue.tasks.isEmpty()) {
+                    queue.inRing = false;
+                    queue.deficit = 0;
+                } else if (queue.running >= queue.concurrency) {
+                    // capped: re-enters the ring, with a new quantum, when one of its sagas finishes
+                    queue.inRing = false;
+                    queue.deficit = 0;
+                } else {
+                    queue.fresh = true;
+                    ring.addLast(queue);
+                }
+            }
+        }
+    }
+
+    static final class CustomerQueue extends SlotQueue {
+        final int weight;
+        int deficit;
+        boolean inRing;
+        boolean fresh;
+
+        CustomerQueue(String customer, int weight, int concurrency, int maxQueued) {
+            super(customer, concurrency, maxQueued);
+            this.weight = weight;
+        }
+    }
+}
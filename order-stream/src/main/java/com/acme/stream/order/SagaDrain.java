@@ -0,0 +1,425 @@
+package com.acme.stream.order;
+
+import com.acme.stream.order.Application.StreamHandler;
+import com.acme.stream.order.SagaTable.Phase;
+import com.acme.stream.order.SagaTable.SagaState;
+import com.acme.stream.order.SagaTable.StepStatus;
+import com.acme.stream.order.SagaTracking.SagaTracker;
+import com.acme.stream.order.StartupWarmup.WarmupRunner;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.kafka.listener.AbstractMessageListenerContainer;
+import org.springframework.kafka.listener.ConsumerAwareRebalanceListener;
+import org.springframework.stereotype.Component;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Schedulers;
+
+import java.net.InetAddress;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Graceful drain of the sagas on shutdown, and handoff of those that do not finish in time. Before the listener
+ * containers are stopped, the {@code order-outbox} ones are told to stop after the records they are handling
+ * ({@code spring.kafka.listener.immediate-stop}), so that only the offsets of the records that were processed are
+ * committed; the sagas in flight then get {@code saga.drain.timeout} to finish.
+ * <p>
+ * A saga still running at the deadline is handed off: its phase and the status and id of each step are saved to
+ * {@code saga_handoffs}, and it is aborted, which sends its record on to the retry topic. Whichever instance gets the
+ * record next, the same one after a restart or the new owner after a rebalance, resumes the saga: steps that were
+ * done are taken from the handoff instead of being called again, a saga cut off while compensating only finishes
+ * its rollbacks. Steps that were still waiting for their service are called again, with the same
+ * {@code x-request-id}.
+ */
+@Slf4j
+class SagaDrain {
+
+    @ConfigurationProperties("saga.drain")
+    record DrainProperties(@DefaultValue("true") boolean enabled,
+                           @DefaultValue("4s") Duration timeout,
+                           @DefaultValue("10m") Duration handoffTtl) {}
+
+    /** {@code topic} and {@code partition}: where the record of the saga was consumed from. */
+    @Document(collection = "saga_handoffs")
+    record SagaHandoff(@Id String eventId, Phase phase, List<HandoffStep> steps, String topic, Integer partition,
+                       String owner, Instant savedAt, Instant expiresAt) {
+        HandoffStep step(String name) {
+            return steps.stream().filter(s -> s.step().equals(name)).findFirst().orElse(null);
+        }
+
+        TopicPartition source() {
+            return topic != null && partition != null ? new TopicPartition(topic, partition) : null;
+        }
+    }
+
+    record HandoffStep(String step, StepStatus status, String id) {
+        boolean done() {
+            return status == StepStatus.DONE;
+        }
+    }
+
+    @Repository
+    interface SagaHandoffRepository extends MongoRepository<SagaHandoff, String> {
+        List<SagaHandoff> findByTopicAndPartitionIn(String topic, Collection<Integer> partitions);
+    }
+
+    /** Thrown into a saga still running at the drain deadline, once its state was handed off. */
+    static class SagaHandedOffException extends RuntimeException {
+        SagaHandedOffException(String eventId) {
+            super("saga of event#" + eventId + " handed off on shutdown");
+        }
+    }
+
+    /**
+     * The handoffs, and the sagas in flight that may have to be handed off. The handoffs of the records of a
+     * partition of the main topic are read, off the consumer thread, when the partition is assigned, so that resuming
+     * a saga from the main topic needs no lookup of its own; a record coming back from a retry topic is looked up by
+     * its event id, its handoff being saved after the assignment.
+     */
+    @Component
+    static class SagaHandoffs {
+        private final DrainProperties properties;
+        private final SagaHandoffRepository repository;
+        private final MongoTemplate mongoTemplate;
+        private final SagaTracker tracker;
+        private final MeterRegistry meterRegistry;
+        private final String owner;
+        private final Map<String, SagaHandoff> assigned = new ConcurrentHashMap<>();
+        private final Map<TopicPartition, Mono<Void>> loads = new ConcurrentHashMap<>();
+        private final Map<String, Inflight> inflight = new HashMap<>();
+
+        SagaHandoffs(DrainProperties properties, SagaHandoffRepository repository, MongoTemplate mongoTemplate,
+                     SagaTracker tracker, MeterRegistry meterRegistry) {
+            this.properties = properties;
+            this.repository = repository;
+            this.mongoTemplate = mongoTemplate;
+            this.tracker = tracker;
+            this.meterRegistry = meterRegistry;
+            this.owner = hostname();
+        }
+
+        /**
+         * Runs the saga of {@code eventId}, of a record of {@code source}, resumed from its handoff if there is one,
+         * and tracked so that it can be handed off in turn. The handoff is deleted once the saga finished.
+         */
+        public <T> Mono<T> run(String eventId, TopicPartition source, Function<SagaHandoff, Mono<T>> saga) {
+            if (!properties.enabled()) {
+                return saga.apply(null);
+            }
+            return find(eventId, source)
+                    .flatMap(handoff -> {
+                        if (handoff.isEmpty()) {
+                            return track(eventId, source, saga.apply(null));
+                        }
+                        var h = handoff.get();
+                        log.info("resuming saga of event#{} handed off by {} in phase {}", eventId, h.owner(), h.phase());
+                        meterRegistry.counter("saga.handoff", "outcome", "resumed").increment();
+                        return track(eventId, source, saga.apply(h)).doOnSuccess(v -> delete(eventId).subscribe());
+                    });
+        }
+
+        /**
+         * A record of the main topic waits for the read of its partition's handoffs; one back from a retry topic,
+         * possibly handed off by the instance that ran it before, is looked up by its event id. A handoff that
+         * cannot be read is taken as none, and its saga runs from the start.
+         */
+        private Mono<Optional<SagaHandoff>> find(String eventId, TopicPartition source) {
+            if (StreamHandler.TOPIC.equals(source.topic())) {
+                return loads.getOrDefault(source, Mono.empty())
+                        .then(Mono.fromSupplier(() -> Optional.ofNullable(assigned.remove(eventId))));
+            }
+            var handoff = assigned.remove(eventId);
+            if (handoff != null) {
+                return Mono.just(Optional.of(handoff));
+            }
+            return Mono.fromCallable(() -> repository.findById(eventId))
+                    .subscribeOn(Schedulers.boundedElastic())
+                    .onErrorResume(e -> {
+                        log.warn("could not look up a handoff of event#{}, its saga runs from the start: {}", eventId, e.toString());
+                        meterRegistry.counter("saga.handoff", "outcome", "unreadable").increment();
+                        return Mono.just(Optional.empty());
+                    });
+        }
+
+        private Mono<Void> delete(String eventId) {
+            return Mono.<Void>fromRunnable(() -> repository.deleteById(eventId))
+                    .subscribeOn(Schedulers.boundedElastic())
+                    .onErrorResume(e -> {
+                        // expires on its own after saga.drain.handoff-ttl
+                        log.warn("could not delete the handoff of event#{}: {}", eventId, e.toString());
+                        return Mono.empty();
+                    });
+        }
+
+        private <T> Mono<T> track(String eventId, TopicPartition source, Mono<T> saga) {
+            return Mono.defer(() -> {
+                var abort = Sinks.<T>one();
+                var running = new Inflight(abort, source);
+                synchronized (inflight) {
+                    inflight.put(eventId, running);
+                }
+                return Mono.firstWithSignal(saga, abort.asMono())
+                        .doFinally(s -> {
+                            synchronized (inflight) {
+                                inflight.remove(eventId, running);
+                                inflight.notifyAll();
+                            }
+                        });
+            });
+        }
+
+        /** Waits until no saga is in flight, or the deadline has passed; returns the event ids still in flight. */
+        List<String> await(long deadlineNanos) throws InterruptedException {
+            synchronized (inflight) {
+                long remaining;
+                while (!inflight.isEmpty() && (remaining = deadlineNanos - System.nanoTime()) > 0) {
+                    inflight.wait(Math.max(1, remaining / 1_000_000));
+                }
+                return new ArrayList<>(inflight.keySet());
+            }
+        }
+
+        /**
+         * Saves the state of a running saga and aborts it, even if it could not be saved; a saga the tracker does
+         * not know is only aborted.
+         */
+        void handOff(String eventId) {
+            Inflight running;
+            synchronized (inflight) {
+                running = inflight.get(eventId);
+            }
+            if (running == null) {
+                return;
+            }
+            try {
+                var state = tracker.state(eventId);
+                if (state != null) {
+                    repository.save(handoff(eventId, running.source(), state));
+                    meterRegistry.counter("saga.handoff", "outcome", "saved").increment();
+                } else {
+                    log.warn("saga of event#{} has not started or is not tracked, it will run from the start", eventId);
+                    meterRegistry.counter("saga.handoff", "outcome", "untracked").increment();
+                }
+            } finally {
+                running.abort().tryEmitError(new SagaHandedOffException(eventId));
+            }
+        }
+
+        private SagaHandoff handoff(String eventId, TopicPartition source, SagaState state) {
+            var names = tracker.steps();
+            var steps = new ArrayList<HandoffStep>(names.size());
+            for (var i = 0; i < names.size(); i++) {
+                var step = state.steps().get(i);
+                steps.add(new HandoffStep(names.get(i), step.status(), step.id()));
+            }
+            var now = Instant.now();
+            return new SagaHandoff(eventId, state.phase(), steps, source.topic(), source.partition(), owner, now,
+                    now.plus(properties.handoffTtl()));
+        }
+
+        /**
+         * Starts reading the handoffs not yet resumed of the records of {@code partitions}, partitions of the main
+         * topic being assigned to a consumer of this instance; the records of those partitions wait for the read.
+         */
+        void load(Collection<TopicPartition> partitions) {
+            if (!properties.enabled() || partitions.isEmpty()) {
+                return;
+            }
+            var scope = Set.copyOf(partitions);
+            var load = Mono.fromRunnable(() -> {
+                        var now = Instant.now();
+                        var handoffs = repository.findByTopicAndPartitionIn(StreamHandler.TOPIC,
+                                        scope.stream().map(TopicPartition::partition).toList()).stream()
+                                .filter(h -> h.expiresAt() == null || h.expiresAt().isAfter(now))
+                                .collect(Collectors.toMap(SagaHandoff::eventId, h -> h));
+                        // those resumed elsewhere meanwhile were deleted
+                        assigned.values().removeIf(h -> scope.contains(h.source()) && !handoffs.containsKey(h.eventId()));
+                        assigned.putAll(handoffs);
+                        if (!handoffs.isEmpty()) {
+                            log.info("{} saga(s) handed off to resume on {}", handoffs.size(), scope);
+                        }
+                    })
+                    .subscribeOn(Schedulers.boundedElastic())
+                    .onErrorResume(e -> {
+                        // resumed by their lookup on the retry topic instead
+                        log.warn("could not read the saga handoffs of {}: {}", scope, e.toString());
+                        return Mono.empty();
+                    })
+                    .then()
+                    .cache();
+            scope.forEach(p -> loads.put(p, load));
+            load.subscribe();
+        }
+
+        /**
+         * The handoffs expire on their own: those of events that were dead-lettered or never came back. They are read
+         * by the partition of their record.
+         */
+        void ensureIndex() {
+            var indexes = mongoTemplate.indexOps(SagaHandoff.class);
+            indexes.ensureIndex(new Index("expiresAt", Sort.Direction.ASC).expire(Duration.ZERO));
+            indexes.ensureIndex(new Index().on("topic", Sort.Direction.ASC).on("partition", Sort.Direction.ASC));
+        }
+
+        private record Inflight(Sinks.One<?> abort, TopicPartition source) {}
+
+        private static String hostname() {
+            try {
+                return InetAddress.getLocalHost().getHostName();
+            } catch (Exception e) {
+                return "unknown";
+            }
+        }
+    }
+
+    /**
+     * Stops the {@code order-outbox} listeners and drains the sagas before the listener containers are stopped by
+     * the context, while Mongo and the http clients are still open to finish or hand off the sagas.
+     */
+    @Component
+    static class SagaDrainer implements SmartLifecycle {
+        private final DrainProperties properties;
+        private final KafkaListenerEndpointRegistry listeners;
+        private final SagaHandoffs handoffs;
+        private final MeterRegistry meterRegistry;
+        private volatile boolean running;
+
+        SagaDrainer(DrainProperties properties, KafkaListenerEndpointRegistry listeners, SagaHandoffs handoffs,
+                    MeterRegistry meterRegistry) {
+            this.properties = properties;
+            this.listeners = listeners;
+            this.handoffs = handoffs;
+            this.meterRegistry = meterRegistry;
+        }
+
+        @Override
+        public void start() {
+            running = true;
+        }
+
+        @Override
+        public void stop() {
+            var drained = new CountDownLatch(1);
+            stop(drained::countDown);
+            try {
+                drained.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void stop(Runnable callback) {
+            running = false;
+            if (!properties.enabled()) {
+                callback.run();
+                return;
+            }
+            var start = System.nanoTime();
+            var containers = listeners.getAllListenerContainers().stream()
+                    .filter(c -> c.getListenerId() != null && c.getListenerId().startsWith(WarmupRunner.LISTENER) && c.isRunning())
+                    .toList();
+            var stopped = new CountDownLatch(containers.size());
+            containers.forEach(c -> c.stop(stopped::countDown));
+            var drain = new Thread(() -> {
+                try {
+                    var remaining = handoffs.await(start + properties.timeout().toNanos());
+                    if (!remaining.isEmpty()) {
+                        log.warn("handing off {} saga(s) still in flight after {}", remaining.size(), properties.timeout());
+                        handoffs.ensureIndex();
+                        for (var eventId : remaining) {
+                            try {
+                                handoffs.handOff(eventId);
+                            } catch (RuntimeException e) {
+                                log.error("could not hand off the saga of event#{}", eventId, e);
+                            }
+                        }
+                    }
+                    // the consumers commit the offsets of the records they processed, handed off ones included, as they exit
+                    if (!stopped.await(properties.timeout().toMillis(), TimeUnit.MILLISECONDS)) {
+                        log.warn("{} listener container(s) still stopping", stopped.getCount());
+                    }
+                    Timer.builder("saga.drain").register(meterRegistry).record(Duration.ofNanos(System.nanoTime() - start));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    callback.run();
+                }
+            }, "saga-drain");
+            drain.start();
+        }
+
+        @Override
+        public boolean isRunning() {
+            return running;
+        }
+
+        /** Stops before the listener containers, which stop in their default phase. */
+        @Override
+        public int getPhase() {
+            return AbstractMessageListenerContainer.DEFAULT_PHASE + 1;
+        }
+    }
+
+    /**
+     * Picked up by the auto-configured listener container factory. The listener runs on the consumer thread, so that
+     * no saga of a consumer is in flight when its partitions are revoked: the records it processed are committed
+     * with the revocation, and the assignment of main topic partitions starts reading the handoffs the previous owner
+     * may have left for them.
+     */
+    @Component
+    static class HandoffRebalanceListener implements ConsumerAwareRebalanceListener {
+        private final SagaHandoffs handoffs;
+        private final MeterRegistry meterRegistry;
+
+        HandoffRebalanceListener(SagaHandoffs handoffs, MeterRegistry meterRegistry) {
+            this.handoffs = handoffs;
+            this.meterRegistry = meterRegistry;
+        }
+
+        @Override
+        public void onPartitionsRevokedBeforeCommit(Consumer<?, ?> consumer, Collection<TopicPartition> partitions) {
+            log.info("partitions revoked: {}", partitions);
+            meterRegistry.counter("saga.rebalance", "event", "revoked").increment(partitions.size());
+        }
+
+        @Override
+        public void onPartitionsLost(Consumer<?, ?> consumer, Collection<TopicPartition> partitions) {
+            log.warn("partitions lost: {}", partitions);
+            meterRegistry.counter("saga.rebalance", "event", "lost").increment(partitions.size());
+        }
+
+        @Override
+        public void onPartitionsAssigned(Consumer<?, ?> consumer, Collection<TopicPartition> partitions) {
+            meterRegistry.counter("saga.rebalance", "event", "assigned").increment(partitions.size());
+            handoffs.load(partitions.stream().filter(p -> StreamHandler.TOPIC.equals(p.topic())).toList());
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package com.acme.stream.order;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.admin.NewTopic;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.InterruptException;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.kafka.KafkaProperties;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.kafka.config.TopicBuilder;
+import org.springframework.kafka.core.DefaultKafkaConsumerFactory;
+import org.springframework.kafka.core.DefaultKafkaProducerFactory;
+import org.springframework.kafka.core.KafkaAdmin;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+import static com.acme.stream.order.Application.MAPPER;
+
+/**
+ * Messaging transport of the saga steps, used instead of the REST calls when {@code saga.messaging.enabled} is set.
+ * A step publishes its request as a JSON command to {@code <step>.command}, keyed by the eventId so that the execute
+ * and rollback of a saga stay ordered, and waits for the reply that payment-service or stock-service publishes to
+ * {@code saga.reply} with the same correlation id.
+ *
+ * <p>Every order-stream instance reads all replies, from every partition of {@code saga.reply} assigned to it without a
+ * consumer group, and completes the ones it is waiting for; the others are ignored.
+ */
+@Slf4j
+class SagaMessaging {
+    static final String CORRELATION_ID = "saga-correlation-id";
+    static final String REQUEST_ID = "x-request-id";
+    static final String ACTION = "saga-action";
+    static final String STATUS = "saga-status";
+    static final String ERROR = "saga-error";
+    static final String EXECUTE = "execute";
+    static final String ROLLBACK = "rollback";
+
+    @ConfigurationProperties("saga.messaging")
+    record SagaMessagingProperties(boolean enabled,
+                                   @DefaultValue("%s.command") String commandTopic,
+                                   @DefaultValue("saga.reply") String replyTopic,
+                                   @DefaultValue("4s") Duration replyTimeout,
+                                   @DefaultValue("4") int partitions) {
+        String commandTopic(String step) {
+            return String.format(commandTopic, step);
+        }
+    }
+
+    @Configuration
+    static class SagaMessagingConfig {
+        @Bean
+        @ConditionalOnProperty("saga.messaging.enabled")
+        public KafkaAdmin.NewTopics sagaTopics(SagaMessagingProperties properties, List<Application.SagaStep<?, ?>> steps) {
+            var topics = Stream.concat(steps.stream().map(s -> properties.commandTopic(s.name())), Stream.of(properties.replyTopic()))
+                    .map(name -> TopicBuilder.name(name).partitions(properties.partitions()).build())
+                    .toArray(NewTopic[]::new);
+            return new KafkaAdmin.NewTopics(topics);
+        }
+    }
+
+    /**
+     * Correlation store of the in-flight commands: a command completes with the first reply carrying its
+     * correlation id, or fails after {@code saga.messaging.reply-timeout}. The replies are read on a thread of their
+     * own; commands are only sent once it is positioned at the end of every reply partition, so that no reply to
+     * them can be skipped.
+     */
+    @Component
+    static class SagaCommands implements DisposableBean {
+        private final SagaMessagingProperties properties;
+        private final MeterRegistry meterRegistry;
+        private final DefaultKafkaProducerFactory<String, String> producerFactory;
+        private final KafkaTemplate<String, String> template;
+        private final DefaultKafkaConsumerFactory<String, String> consumerFactory;
+        private final Map<String, Sinks.One<ConsumerRecord<String, String>>> pending = new ConcurrentHashMap<>();
+        private final CompletableFuture<Void> ready = new CompletableFuture<>();
+        private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> new Thread(r, "saga-reply"));
+        private volatile boolean closed;
+
+        SagaCommands(SagaMessagingProperties properties, KafkaProperties kafkaProperties, MeterRegistry meterRegistry) {
+            this.properties = properties;
+            this.meterRegistry = meterRegistry;
+            // not beans: the auto-configured Avro template and consumer must stay in place for the outbox topics
+            var props = kafkaProperties.buildProducerProperties();
+            props.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class);
+            props.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, StringSerializer.class);
+            this.producerFactory = new DefaultKafkaProducerFactory<>(props);
+            this.template = new KafkaTemplate<>(producerFactory);
+            var consumerProps = kafkaProperties.buildConsumerProperties();
+            consumerProps.remove(ConsumerConfig.GROUP_ID_CONFIG);
+            consumerProps.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
+            consumerProps.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class);
+            consumerProps.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class);
+            this.consumerFactory = new DefaultKafkaConsumerFactory<>(consumerProps);
+            if (properties.enabled()) {
+                executor.execute(this::receive);
+            }
+        }
+
+        public boolean enabled() {
+            return properties.enabled();
+        }
+
+        public <T> Mono<T> execute(String step, String eventId, T command, Class<T> type) {
+            return send(step, EXECUTE, eventId, command)
+                    .flatMap(body -> Mono.fromCallable(() -> MAPPER.readValue(body, type)));
+        }
+
+        public <T> Mono<T> rollback(String step, String eventId, T command) {
+            return send(step, ROLLBACK, eventId, command).thenReturn(command);
+        }
+
+        private Mono<String> send(String step, String action, String eventId, Object command) {
+            return Mono.defer(() -> {
+                var correlationId = UUID.randomUUID().toString();
+                var reply = Sinks.<ConsumerRecord<String, String>>one();
+                pending.put(correlationId, reply);
+                var start = System.nanoTime();
+                return Mono.fromFuture(ready)
+                        .then(Mono.fromCallable(() -> record(step, action, eventId, correlationId, command)))
+                        .flatMap(r -> Mono.fromFuture(template.send(r)))
+                        .then(reply.asMono())
+                        .timeout(properties.replyTimeout())
+                        .flatMap(r -> {
+                            var status = header(r, STATUS);
+                            if (!"ok".equals(status)) {
+                                return Mono.error(new IllegalStateException(String.format("%s %s failed: %s", step, action, header(r, ERROR))));
+                            }
+                            return Mono.justOrEmpty(r.value());
+                        })
+                        .doOnEach(s -> {
+                            if (s.isOnComplete() || s.isOnError()) {
+                                meterRegistry.timer("saga.command", "step", step, "action", action, "outcome", s.isOnError() ? "failed" : "ok")
+                                        .record(Duration.ofNanos(System.nanoTime() - start));
+                            }
+                        })
+                        .doFinally(s -> pending.remove(correlationId));
+            });
+        }
+
+        private ProducerRecord<String, String> record(String step, String action, String eventId, String correlationId, Object command) throws Exception {
+            var record = new ProducerRecord<>(properties.commandTopic(step), eventId, MAPPER.writeValueAsString(command));
+            record.headers()
+                    .add(REQUEST_ID, bytes(eventId))
+                    .add(CORRELATION_ID, bytes(correlationId))
+                    .add(ACTION, bytes(action))
+                    .add(KafkaHeaders.REPLY_TOPIC, bytes(properties.replyTopic()));
+            log.debug("sending {} {} command#{} for event#{}", step, action, correlationId, eventId);
+            return record;
+        }
+
+        /**
+         * Reads the replies from the end of every partition of the reply topic, as they were when it started. Should
+         * the consumer fail, a new one starts over from the end, the commands whose replies were missed timing out.
+         */
+        private void receive() {
+            while (!closed) {
+                try (var consumer = consumerFactory.createConsumer()) {
+                    var partitions = consumer.partitionsFor(properties.replyTopic()).stream()
+                            .map(p -> new TopicPartition(p.topic(), p.partition()))
+                            .toList();
+                    if (partitions.isEmpty()) {
+                        Thread.sleep(1_000);
+                        continue;
+                    }
+                    consumer.assign(partitions);
+                    consumer.seekToEnd(partitions);
+                    // resolves the end offsets now, before any command is sent, instead of on the first poll
+                    partitions.forEach(consumer::position);
+                    ready.complete(null);
+                    log.info("reading saga replies from {}", partitions);
+                    while (!closed) {
+                        consumer.poll(Duration.ofSeconds(1)).forEach(this::onReply);
+                    }
+                } catch (InterruptedException | InterruptException e) {
+                    return;
+                } catch (RuntimeException e) {
+                    log.error("saga reply consumer failed, restarting it", e);
+                }
+            }
+        }
+
+        private void onReply(ConsumerRecord<String, String> record) {
+            var correlationId = header(record, CORRELATION_ID);
+            var reply = correlationId != null ? pending.get(correlationId) : null;
+            if (reply == null) {
+                // another instance's command, or one that already timed out
+                return;
+            }
+            reply.tryEmitValue(record);
+        }
+
+        static String header(ConsumerRecord<?, ?> record, String name) {
+            Header header = record.headers().lastHeader(name);
+            return header != null ? new String(header.value(), StandardCharsets.UTF_8) : null;
+        }
+
+        private static byte[] bytes(String s) {
+            return s != null ? s.getBytes(StandardCharsets.UTF_8) : null;
+        }
+
+        @Override
+        public void destroy() {
+            closed = true;
+            executor.shutdownNow();
+            producerFactory.destroy();
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package com.acme.stream.order;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fixed-layout, off-heap table of the in-flight sagas, so that hundreds of thousands of them cost a few dozen
+ * bytes each outside the heap instead of an object graph per saga inside it.
+ *
+ * <p>The table is split into power-of-two segments, each a direct {@link ByteBuffer} of {@link #SLOT_BYTES}-byte
+ * slots addressed by linear probing and guarded by its own monitor. Segments are sized exactly, not rounded up to a
+ * power of two, and a hash is mapped onto its segment's slots by multiply-shift. A saga is keyed by the 64-bit hash of its
+ * eventId, which is not stored: two eventIds with the same hash would share an entry, which is negligible at the
+ * sizes the table is meant for. Removals shift the following entries of the probe run back, so there are no
+ * tombstones and a lookup never scans more than the run of its hash. The table does not grow; a segment refuses
+ * new sagas once it is {@link #MAX_LOAD} full and the caller decides what to do without tracking.
+ *
+ * <pre>
+ * slot: key (8) | expiresAt epoch millis (8) | phase (1) | step statuses, 2 bits per step (1)
+ *       | id headers, encoding and length (1 per step) | padding (4) | ids ({@value #ID_BYTES} per step)
+ * </pre>
+ * An id is stored in binary when it is a lowercase hex ObjectId (12 bytes) or UUID (16 bytes), and as ASCII when it
+ * has at most {@value #ID_BYTES} chars; longer ids are not kept.
+ */
+final class SagaTable {
+    static final int STEPS = 2;
+    static final int ID_BYTES = 16;
+    static final int SLOT_BYTES = 24 + STEPS * ID_BYTES;
+    static final double MAX_LOAD = 0.75;
+
+    private static final int KEY = 0;
+    private static final int EXPIRES_AT = 8;
+    private static final int PHASE = 16;
+    private static final int STATUSES = 17;
+    private static final int ID_HEADERS = 18;
+    private static final int IDS = 24;
+    private static final long EMPTY = 0L;
+    private static final int ASCII = 1 << 6;
+    private static final int HEX = 2 << 6;
+    private static final int UUID = 3 << 6;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    enum Phase { RUNNING, COMPENSATING, COMPLETED, FAILED }
+
+    enum StepStatus { NONE, PENDING, DONE, FAILED }
+
+    record StepState(StepStatus status, String id) {}
+
+    /** Heap copy of an entry, for inspection only. */
+    record SagaState(Phase phase, List<StepState> steps, long expiresAt) {}
+
+    private final Segment[] segments;
+    private final int segmentShift;
+
+    /**
+     * @param segments number of lock stripes, rounded up to a power of two
+     * @param capacity total number of slots, split evenly between the segments
+     */
+    SagaTable(int segments, int capacity) {
+        var n = pow2(segments);
+        var slots = Math.max(2, (capacity + n - 1) / n);
+        this.segments = new Segment[n];
+        for (var i = 0; i < n; i++) {
+            this.segments[i] = new Segment(slots);
+        }
+        this.segmentShift = 64 - Integer.numberOfTrailingZeros(n);
+    }
+
+    /** Tracks a new saga as running with every step pending; false if it is already tracked or its segment is full. */
+    boolean start(String eventId, long expiresAt) {
+        var key = hash(eventId);
+        return segment(key).start(key, expiresAt);
+    }
+
+    /** Records the outcome of step {@code step}, with the id the remote service gave it; false if not tracked. */
+    boolean step(String eventId, int step, StepStatus status, String id) {
+        checkStep(step);
+        var key = hash(eventId);
+        return segment(key).step(key, step, status, id != null ? encode(id) : null);
+    }
+
+    boolean phase(String eventId, Phase phase) {
+        var key = hash(eventId);
+        return segment(key).phase(key, phase);
+    }
+
+    SagaState get(String eventId) {
+        var key = hash(eventId);
+        return segment(key).get(key);
+    }
+
+    boolean remove(String eventId) {
+        var key = hash(eventId);
+        return segment(key).remove(key);
+    }
+
+    /** Removes the sagas whose expiry is before {@code now}, one segment at a time, and returns how many. */
+    int sweep(long now) {
+        var removed = 0;
+        for (var segment : segments) {
+            removed += segment.sweep(now);
+        }
+        return removed;
+    }
+
+    int size() {
+        var size = 0;
+        for (var segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    int capacity() {
+        return segments.length * segments[0].slots;
+    }
+
+    long offHeapBytes() {
+        return (long) capacity() * SLOT_BYTES;
+    }
+
+    private Segment segment(long key) {
+        return segments[segments.length == 1 ? 0 : (int) (key >>> segmentShift)];
+    }
+
+    private static int pow2(int n) {
+        return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+    }
+
+    private static void checkStep(int step) {
+        if (step < 0 || step >= STEPS) {
+            throw new IllegalArgumentException("step index out of range: " + step);
+        }
+    }
+
+    /** The id as its header byte followed by its bytes, or null if it does not fit. */
+    static byte[] encode(String id) {
+        var length = id.length();
+        if ((length == 24 || length == 36) && hex(id)) {
+            var bytes = new byte[1 + length / 2 - (length == 36 ? 2 : 0)];
+            bytes[0] = (byte) ((length == 24 ? HEX : UUID) | bytes.length - 1);
+            for (int i = 0, b = 1; i < length; i++) {
+                if (id.charAt(i) == '-') {
+                    continue;
+                }
+                bytes[b++] = (byte) (Character.digit(id.charAt(i), 16) << 4 | Character.digit(id.charAt(++i), 16));
+            }
+            return bytes;
+        }
+        if (length > ID_BYTES) {
+            return null;
+        }
+        var bytes = new byte[1 + length];
+        bytes[0] = (byte) (ASCII | length);
+        for (var i = 0; i < length; i++) {
+            var c = id.charAt(i);
+            if (c > 0x7f) {
+                return null;
+            }
+            bytes[1 + i] = (byte) c;
+        }
+        return bytes;
+    }
+
+    private static boolean hex(String id) {
+        for (var i = 0; i < id.length(); i++) {
+            var c = id.charAt(i);
+            var dash = id.length() == 36 && (i == 8 || i == 13 || i == 18 || i == 23);
+            if (dash ? c != '-' : !(c >= '0' && c <= '9' || c >= 'a' && c <= 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static String decode(int header, ByteBuffer buffer, int offset) {
+        var length = header & 0x3f;
+        var kind = header & 0xc0;
+        var chars = new StringBuilder(kind == ASCII ? length : length * 2 + 4);
+        for (var i = 0; i < length; i++) {
+            var b = buffer.get(offset + i);
+            if (kind == ASCII) {
+                chars.append((char) b);
+                continue;
+            }
+            if (kind == UUID && (i == 4 || i == 6 || i == 8 || i == 10)) {
+                chars.append('-');
+            }
+            chars.append(HEX_DIGITS[b >> 4 & 0xf]).append(HEX_DIGITS[b & 0xf]);
+        }
+        return chars.toString();
+    }
+
+    /** 64-bit FNV-1a of the chars with a murmur3 finalizer, so that both the segment and the slot bits are mixed. */
+    static long hash(String s) {
+        var h = 0xcbf29ce484222325L;
+        for (var i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        // 0 marks an empty slot
+        return h != EMPTY ? h : 1;
+    }
+
+    private static final class Segment {
+        private final ByteBuffer buffer;
+        private final int slots;
+        private final int maxSize;
+        private int size;
+
+        Segment(int slots) {
+            this.buffer = ByteBuffer.allocateDirect(slots * SLOT_BYTES);
+            this.slots = slots;
+            this.maxSize = (int) (slots * MAX_LOAD);
+        }
+
+        synchronized boolean start(long key, long expiresAt) {
+            var slot = find(key);
+            if (key(slot) == key || size >= maxSize) {
+                return false;
+            }
+            var base = slot * SLOT_BYTES;
+            buffer.putLong(base + KEY, key);
+            buffer.putLong(base + EXPIRES_AT, expiresAt);
+            buffer.put(base + PHASE, (byte) Phase.RUNNING.ordinal());
+            var pending = 0;
+            for (var step = 0; step < STEPS; step++) {
+                pending |= StepStatus.PENDING.ordinal() << (step * 2);
+            }
+            buffer.put(base + STATUSES, (byte) pending);
+            buffer.putShort(base + ID_HEADERS, (short) 0);
+            size++;
+            return true;
+        }
+
+        synchronized boolean step(long key, int step, StepStatus status, byte[] id) {
+            var slot = find(key);
+            if (key(slot) != key) {
+                return false;
+            }
+            var base = slot * SLOT_BYTES;
+            var statuses = buffer.get(base + STATUSES) & ~(0b11 << (step * 2)) | status.ordinal() << (step * 2);
+            buffer.put(base + STATUSES, (byte) statuses);
+            if (id != null) {
+                buffer.put(base + ID_HEADERS + step, id[0]);
+                buffer.put(base + IDS + step * ID_BYTES, id, 1, id.length - 1);
+            }
+            return true;
+        }
+
+        synchronized boolean phase(long key, Phase phase) {
+            var slot = find(key);
+            if (key(slot) != key) {
+                return false;
+            }
+            buffer.put(slot * SLOT_BYTES + PHASE, (byte) phase.ordinal());
+            return true;
+        }
+
+        synchronized SagaState get(long key) {
+            var slot = find(key);
+            if (key(slot) != key) {
+                return null;
+            }
+            var base = slot * SLOT_BYTES;
+            var statuses = buffer.get(base + STATUSES);
+            var steps = new ArrayList<StepState>(STEPS);
+            for (var step = 0; step < STEPS; step++) {
+                var header = buffer.get(base + ID_HEADERS + step) & 0xff;
+                var id = header != 0 ? decode(header, buffer, base + IDS + step * ID_BYTES) : null;
+                steps.add(new StepState(StepStatus.values()[statuses >>> (step * 2) & 0b11], id));
+            }
+            return new SagaState(Phase.values()[buffer.get(base + PHASE)], steps, buffer.getLong(base + EXPIRES_AT));
+        }
+
+        synchronized boolean remove(long key) {
+            var slot = find(key);
+            if (key(slot) != key) {
+                return false;
+            }
+            delete(slot);
+            return true;
+        }
+
+        synchronized int sweep(long now) {
+            var removed = 0;
+            var slot = 0;
+            while (slot < slots) {
+                if (key(slot) != EMPTY && buffer.getLong(slot * SLOT_BYTES + EXPIRES_AT) < now) {
+                    // the next entry of the run may have been shifted into this slot: look at it again
+                    delete(slot);
+                    removed++;
+                } else {
+                    slot++;
+                }
+            }
+            return removed;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        /** The slot holding {@code key}, or the empty slot ending its probe run. */
+        private int find(long key) {
+            var slot = home(key);
+            while (true) {
+                var k = key(slot);
+                if (k == key || k == EMPTY) {
+                    return slot;
+                }
+                slot = next(slot);
+            }
+        }
+
+        /** Backward-shift deletion: moves the entries of the run that may live in the hole, then clears the last one. */
+        private void delete(int hole) {
+            var slot = hole;
+            while (true) {
+                slot = next(slot);
+                var k = key(slot);
+                if (k == EMPTY) {
+                    break;
+                }
+                var home = home(k);
+                var stays = hole <= slot ? hole < home && home <= slot : hole < home || home <= slot;
+                if (!stays) {
+                    copy(slot, hole);
+                    hole = slot;
+                }
+            }
+            buffer.putLong(hole * SLOT_BYTES + KEY, EMPTY);
+            size--;
+        }
+
+        private void copy(int from, int to) {
+            buffer.put(to * SLOT_BYTES, buffer.duplicate(), from * SLOT_BYTES, SLOT_BYTES);
+        }
+
+        /** Multiply-shift of the low 32 bits, the high bits pick the segment. */
+        private int home(long key) {
+            return (int) ((key & 0xffffffffL) * slots >>> 32);
+        }
+
+        private int next(int slot) {
+            return slot + 1 < slots ? slot + 1 : 0;
+        }
+
+        private long key(int slot) {
+            return buffer.getLong(slot * SLOT_BYTES + KEY);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.acme.stream.order;
+
+import com.acme.stream.order.Application.SagaListener;
+import com.acme.stream.order.Application.SagaOutcome;
+import com.acme.stream.order.SagaTable.Phase;
+import com.acme.stream.order.SagaTable.SagaState;
+import com.acme.stream.order.SagaTable.StepStatus;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * State of the in-flight sagas, kept in a {@link SagaTable} off the heap: the phase of each saga, the status of each
+ * of its steps and the ids payment-service and stock-service gave them. A saga leaves the table once it completed or
+ * was compensated; one that never finishes is removed by the sweep once {@code saga.tracking.ttl} has passed.
+ */
+@Slf4j
+class SagaTracking {
+
+    @ConfigurationProperties("saga.tracking")
+    record SagaTrackingProperties(@DefaultValue("true") boolean enabled,
+                                  @DefaultValue("16") int segments,
+                                  @DefaultValue("262144") int capacity,
+                                  @DefaultValue("1m") Duration ttl) {}
+
+    @Component
+    static class SagaTracker {
+        private final SagaTrackingProperties properties;
+        private final SagaTable table;
+        private final MeterRegistry meterRegistry;
+        private final List<String> steps;
+        private final List<SagaListener> listeners;
+
+        @Autowired
+        SagaTracker(SagaTrackingProperties properties, MeterRegistry meterRegistry, List<Application.SagaStep<?, ?>> steps,
+                    ObjectProvider<SagaListener> listeners) {
+            this(properties, meterRegistry, steps, listeners.orderedStream().toList());
+        }
+
+        /** A tracker of its own, e.g. for the warmup sagas, which no listener is told about. */
+        SagaTracker(SagaTrackingProperties properties, MeterRegistry meterRegistry, List<Application.SagaStep<?, ?>> steps) {
+            this(properties, meterRegistry, steps, List.of());
+        }
+
+        private SagaTracker(SagaTrackingProperties properties, MeterRegistry meterRegistry, List<Application.SagaStep<?, ?>> steps,
+                            List<SagaListener> listeners) {
+            this.properties = properties;
+            this.meterRegistry = meterRegistry;
+            this.listeners = listeners;
+            this.steps = steps.stream().map(Application.SagaStep::name).toList();
+            if (this.steps.size() > SagaTable.STEPS) {
+                throw new IllegalStateException("saga table tracks " + SagaTable.STEPS + " steps, found " + this.steps);
+            }
+            this.table = new SagaTable(properties.segments(), properties.enabled() ? properties.capacity() : 0);
+            Gauge.builder("saga.inflight", table, SagaTable::size).register(meterRegistry);
+            Gauge.builder("saga.table.capacity", table, SagaTable::capacity).register(meterRegistry);
+        }
+
+        public void started(String eventId) {
+            if (properties.enabled() && !table.start(eventId, System.currentTimeMillis() + properties.ttl().toMillis())) {
+                // already tracked (a redelivery), or the table is full: the saga runs untracked
+                meterRegistry.counter("saga.tracking.rejected").increment();
+            }
+        }
+
+        public void step(String eventId, String step, StepStatus status, String id) {
+            if (properties.enabled()) {
+                table.step(eventId, steps.indexOf(step), status, id);
+            }
+        }
+
+        public void compensating(String eventId) {
+            if (properties.enabled()) {
+                table.phase(eventId, Phase.COMPENSATING);
+            }
+        }
+
+        public void outcome(String eventId, SagaOutcome outcome) {
+            for (var listener : listeners) {
+                listener.finished(eventId, outcome);
+            }
+        }
+
+        public void finished(String eventId) {
+            if (properties.enabled()) {
+                table.remove(eventId);
+            }
+        }
+
+        public SagaState state(String eventId) {
+            return table.get(eventId);
+        }
+
+        public List<String> steps() {
+            return steps;
+        }
+
+        @Scheduled(fixedDelayString = "${saga.tracking.sweep-interval:PT10S}")
+        public void sweep() {
+            var expired = table.sweep(System.currentTimeMillis());
+            if (expired > 0) {
+                log.warn("expired {} saga(s) still in flight after {}", expired, properties.ttl());
+                meterRegistry.counter("saga.tracking.expired").increment(expired);
+            }
+        }
+    }
+
+    @RestController
+    @RequiredArgsConstructor
+    static class SagaTrackingController {
+        private final SagaTracker tracker;
+
+        @GetMapping("/admin/sagas/{eventId}")
+        public Mono<SagaState> saga(@PathVariable("eventId") String eventId) {
+            return Mono.justOrEmpty(tracker.state(eventId))
+                    .switchIfEmpty(Mono.error(new ResponseStatusException(HttpStatus.NOT_FOUND)));
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.acme.stream.order;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The slot dispatch shared by the {@link EventLanes.LaneDispatcher} and the {@link FairScheduling.FairScheduler}:
+ * work waits in a queue per key until its dispatcher gives it one of {@code maxConcurrency} slots.
+ */
+@Slf4j
+class SlotDispatch {
+
+    /**
+     * Queues work per key and starts it in at most {@code maxConcurrency} slots; which queue gets a free slot is
+     * left to {@link #dispatch}. The queues are only touched under the dispatcher's monitor and the work is
+     * subscribed outside of it. Queues are kept once created, their keys being a bounded set, so that their metrics
+     * ({@code <metrics>.wait}, {@code <metrics>.queue.depth}, {@code <metrics>.running}) stay continuous.
+     */
+    abstract static class SlotDispatcher<Q extends SlotQueue> {
+        protected final Map<String, Q> queues = new HashMap<>();
+        private final MeterRegistry meterRegistry;
+        private final String metrics;
+        private final String tag;
+        private final int maxConcurrency;
+        private int running;
+
+        SlotDispatcher(MeterRegistry meterRegistry, String metrics, String tag, int maxConcurrency) {
+            this.meterRegistry = meterRegistry;
+            this.metrics = metrics;
+            this.tag = tag;
+            this.maxConcurrency = maxConcurrency;
+        }
+
+        /** A new queue for the key; its wait timer and gauges are registered by the caller. */
+        protected abstract Q newQueue(String key);
+
+        /** Counts a rejection of the full queue and returns the error the work fails with. */
+        protected abstract RuntimeException rejected(Q queue);
+
+        /** Fills the free slots, called under the monitor, adding the tasks to start outside of it. */
+        protected abstract void dispatch(List<Task> started);
+
+        /** Called under the monitor once a task was added to the queue. */
+        protected void onQueued(Q queue) {
+        }
+
+        /** Called under the monitor once a task of the queue gave its slot back. */
+        protected void onReleased(Q queue) {
+        }
+
+        /** The work as subscribed once it has a slot, e.g. to count its outcome. */
+        protected <T> Mono<T> observe(Q queue, Mono<T> work) {
+            return work;
+        }
+
+        protected <T> Mono<T> enqueue(String key, Mono<T> work) {
+            return Mono.create(sink -> {
+                var task = new Task();
+                sink.onCancel(task::cancel);
+                var started = new ArrayList<Task>();
+                synchronized (this) {
+                    var queue = queues.computeIfAbsent(key, this::register);
+                    if (queue.tasks.size() >= queue.maxQueued) {
+                        sink.error(rejected(queue));
+                        return;
+                    }
+                    task.queue = queue;
+                    task.release = () -> release(queue);
+                    task.start = () -> task.started(observe(queue, work)
+                            .doFinally(signal -> release(queue))
+                            .subscribe(sink::success, sink::error, sink::success));
+                    queue.tasks.add(task);
+                    onQueued(queue);
+                    dispatch(started);
+                }
+                started.forEach(Task::run);
+            });
+        }
+
+        protected final boolean slotFree() {
+            return running < maxConcurrency;
+        }
+
+        /** Takes a slot for the next task of the queue not cancelled while waiting; false once there is none. */
+        protected final boolean startNext(Q queue, List<Task> started) {
+            Task task;
+            while ((task = queue.tasks.pollFirst()) != null) {
+                if (!task.cancelled) {
+                    queue.running++;
+                    running++;
+                    started.add(task);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        synchronized int running() {
+            return running;
+        }
+
+        private Q register(String key) {
+            var queue = newQueue(key);
+            queue.waitTimer = Timer.builder(metrics + ".wait").tag(tag, key).publishPercentileHistogram().register(meterRegistry);
+            Gauge.builder(metrics + ".queue.depth", queue, this::depth).tag(tag, key).register(meterRegistry);
+            Gauge.builder(metrics + ".running", queue, this::active).tag(tag, key).register(meterRegistry);
+            return queue;
+        }
+
+        private void release(Q queue) {
+            var started = new ArrayList<Task>();
+            synchronized (this) {
+                running--;
+                queue.running--;
+                onReleased(queue);
+                dispatch(started);
+            }
+            started.forEach(Task::run);
+        }
+
+        private synchronized int depth(SlotQueue queue) {
+            return queue.tasks.size();
+        }
+
+        private synchronized int active(SlotQueue queue) {
+            return queue.running;
+        }
+    }
+
+    /** The work waiting under one key, and the number of its tasks holding a slot. */
+    static class SlotQueue {
+        final String key;
+        final int concurrency;
+        final int maxQueued;
+        final ArrayDeque<Task> tasks = new ArrayDeque<>();
+        Timer waitTimer;
+        int running;
+
+        SlotQueue(String key, int concurrency, int maxQueued) {
+            this.key = key;
+            this.concurrency = concurrency;
+            this.maxQueued = maxQueued;
+        }
+    }
+
+    static final class Task {
+        final long enqueuedAt = System.nanoTime();
+        private SlotQueue queue;
+        private Runnable start;
+        private Runnable release;
+        private volatile boolean cancelled;
+        private volatile Disposable subscription;
+
+        private void run() {
+            queue.waitTimer.record(Duration.ofNanos(System.nanoTime() - enqueuedAt));
+            if (cancelled) {
+                release.run();
+                return;
+            }
+            try {
+                start.run();
+            } catch (RuntimeException e) {
+                log.error("task queued under {} failed to start", queue.key, e);
+                release.run();
+            }
+        }
+
+        /** Either this or {@link #cancel} sees the other's write, so work cancelled as it starts is disposed. */
+        private void started(Disposable subscription) {
+            this.subscription = subscription;
+            if (cancelled) {
+                subscription.dispose();
+            }
+        }
+
+        private void cancel() {
+            cancelled = true;
+            var running = subscription;
+            if (running != null) {
+                running.dispose();
+            }
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.acme.stream.order;
+
+import com.acme.kafka.outbox.avro.EventKey;
+import com.acme.kafka.outbox.avro.EventValue;
+import com.acme.stream.order.Application.CompensationEngine;
+import com.acme.stream.order.Application.CreateOrderSagaWorkflow;
+import com.acme.stream.order.Application.Order;
+import com.acme.stream.order.Application.OrderItem;
+import com.acme.stream.order.Application.OutboxEvent;
+import com.acme.stream.order.Application.SagaStep;
+import com.acme.stream.order.FairScheduling.FairScheduler;
+import com.acme.stream.order.FairScheduling.SchedulerProperties;
+import com.acme.stream.order.SagaTracking.SagaTracker;
+import com.acme.stream.order.SagaTracking.SagaTrackingProperties;
+import com.acme.stream.order.serde.SchemaResolver;
+import com.acme.stream.order.serde.SpecificAvroDeserializer;
+import com.acme.stream.order.serde.SpecificAvroSerializer;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Warmup before readiness: synthetic orders and outbox events are run through the code of the saga path so that it
+ * is compiled, and its classes loaded and caches filled, before the first real event. Readiness turns UP once the
+ * application runners have returned, and the {@code order-outbox} listeners are only started after the warmup.
+ * <p>
+ * Nothing leaves the process but health checks of payment-service and stock-service, which also open the pooled
+ * connections to them: the saga steps are dry runs, and the tracker and scheduler are private instances with their
+ * own meter registry, so the warmup leaves no sagas, meters or records behind.
+ */
+@Slf4j
+class StartupWarmup {
+
+    @ConfigurationProperties("warmup")
+    record WarmupProperties(@DefaultValue("true") boolean enabled,
+                            @DefaultValue("5000") int iterations,
+                            @DefaultValue("16") int concurrency,
+                            @DefaultValue("30s") Duration timeout) {}
+
+    @Component
+    static class WarmupRunner implements ApplicationRunner {
+        static final String LISTENER = "order-outbox";
+
+        private final WarmupProperties properties;
+        private final MeterRegistry meterRegistry;
+        private final KafkaListenerEndpointRegistry listeners;
+        private final CreateOrderSagaWorkflow saga;
+        private final FairScheduler scheduler;
+        private final WebClient webClient;
+        private final List<String> healthUrls;
+
+        WarmupRunner(WarmupProperties properties, MeterRegistry meterRegistry, KafkaListenerEndpointRegistry listeners,
+                     List<SagaStep<?, ?>> steps, CompensationEngine compensations,
+                     SagaTrackingProperties trackingProperties, SchedulerProperties schedulerProperties,
+                     WebClient.Builder builder,
+                     @Value("${remote-url.payment-service}") String paymentUrl,
+                     @Value("${remote-url.stock-service}") String stockUrl) {
+            this.properties = properties;
+            this.meterRegistry = meterRegistry;
+            this.listeners = listeners;
+            this.webClient = builder.build();
+            this.healthUrls = List.of(paymentUrl + "/actuator/health", stockUrl + "/actuator/health");
+            var local = new SimpleMeterRegistry();
+            var dryRun = new ArrayList<SagaStep<?, Order>>();
+            for (var step : steps) {
+                dryRun.add(dryRun(step));
+            }
+            var tracker = new SagaTracker(new SagaTrackingProperties(trackingProperties.enabled(), 1, 4096, trackingProperties.ttl()), local, steps);
+            this.saga = new CreateOrderSagaWorkflow(dryRun, compensations, tracker, local);
+            this.scheduler = new FairScheduler(schedulerProperties, local);
+        }
+
+        @Override
+        public void run(ApplicationArguments args) {
+            if (properties.enabled()) {
+                var start = System.nanoTime();
+                try {
+                    warmup().block(properties.timeout());
+                } catch (RuntimeException e) {
+                    // a partial warmup is still better than none: readiness is not held up any longer
+                    log.warn("warmup incomplete after {}: {}", properties.timeout(), e.toString());
+                }
+                var elapsed = Duration.ofNanos(System.nanoTime() - start);
+                Timer.builder("app.warmup").register(meterRegistry).record(elapsed);
+                log.info("warmup of {} saga(s) done in {} ms", properties.iterations(), elapsed.toMillis());
+            }
+            listeners.getAllListenerContainers().stream()
+                    .filter(c -> c.getListenerId() != null && c.getListenerId().startsWith(LISTENER) && !c.isRunning())
+                    .forEach(c -> c.start());
+        }
+
+        private Mono<Void> warmup() {
+            var key = new SpecificAvroSerializer(SchemaResolver.of(Map.of(SchemaResolver.LOCAL_MODE, "true")));
+            var value = new SpecificAvroSerializer(SchemaResolver.of(Map.of(SchemaResolver.LOCAL_MODE, "true")));
+            key.configure(Map.of(), true);
+            value.configure(Map.of(), false);
+            var keys = new SpecificAvroDeserializer(SchemaResolver.of(Map.of(SchemaResolver.LOCAL_MODE, "true")));
+            var values = new SpecificAvroDeserializer(SchemaResolver.of(Map.of(SchemaResolver.LOCAL_MODE, "true")));
+            keys.configure(Map.of(), true);
+            values.configure(Map.of(), false);
+            var smile = Jackson2ObjectMapperBuilder.smile().build();
+
+            var health = Flux.fromIterable(healthUrls)
+                    .flatMap(url -> webClient.get().uri(url).retrieve().toBodilessEntity()
+                            .timeout(Duration.ofSeconds(2))
+                            .onErrorResume(e -> {
+                                log.debug("warmup health check of {} failed: {}", url, e.toString());
+                                return Mono.empty();
+                            }))
+                    .then();
+
+            var sagas = Flux.range(0, properties.iterations())
+                    .flatMap(i -> Mono.fromCallable(() -> {
+                                // the listener's decoding of a record: avro key and value, then the JSON payload
+                                var eventId = "warmup-" + UUID.randomUUID();
+                                var payload = Application.MAPPER.writeValueAsString(order(i));
+                                var type = i % 10 == 0 ? "batch" : "order_created";
+                                if (type.equals("batch")) {
+                                    payload = Application.MAPPER.writeValueAsString(List.of(new OutboxEvent(eventId + "-0", "order_created", payload)));
+                                }
+                                var k = (EventKey) keys.deserialize("warmup", key.serialize("warmup", new EventKey(eventId)));
+                                var v = (EventValue) values.deserialize("warmup", value.serialize("warmup", new EventValue(type, System.currentTimeMillis(), payload)));
+                                var event = OutboxEvent.expand(String.valueOf(k.getEventId()), v).get(0);
+                                return Map.entry(event.eventId(), Application.MAPPER.readValue(event.payload(), Order.class));
+                            })
+                            .flatMap(e -> scheduler.submit(e.getValue().customerCode(), saga.execute(e.getKey(), e.getValue())))
+                            .then(Mono.fromCallable(() -> smile.readValue(smile.writeValueAsBytes(order(i)), Order.class))), properties.concurrency())
+                    .then();
+
+            return Mono.when(health, sagas);
+        }
+
+        private static Order order(int i) {
+            return new Order(UUID.randomUUID().toString(), "SO-" + i, new Date(), String.format("C%03d", i % 50 + 1),
+                    List.of(new OrderItem("S001", "B001", 1, 1000.0), new OrderItem("S002", "B002", 2, 500.0)), 2000.0);
+        }
+
+        /** The step, bound as usual but answered in-process with what it was sent. */
+        private static <T> SagaStep<T, Order> dryRun(SagaStep<T, ?> step) {
+            @SuppressWarnings("unchecked")
+            var real = (SagaStep<T, Order>) step;
+            return new SagaStep<>() {
+                @Override
+                public String name() {
+                    return real.name();
+                }
+
+                @Override
+                public Class<T> type() {
+                    return real.type();
+                }
+
+                @Override
+                public String id(T t) {
+                    return real.id(t);
+                }
+
+                @Override
+                public T bind(Order o) {
+                    return real.bind(o);
+                }
+
+                @Override
+                public T withId(T t, String id) {
+                    return real.withId(t, id);
+                }
+
+                @Override
+                public Mono<T> execute(String eventId, T t) {
+                    return Mono.fromCallable(() -> Application.MAPPER.readValue(Application.MAPPER.writeValueAsBytes(t), real.type()));
+                }
+
+                @Override
+                public Mono<T> rollback(String eventId, T t) {
+                    return Mono.just(t);
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.acme.stream.order.serde;
+
+import io.confluent.kafka.schemaregistry.avro.AvroSchema;
+import io.confluent.kafka.schemaregistry.client.CachedSchemaRegistryClient;
+import io.confluent.kafka.schemaregistry.client.SchemaRegistryClient;
+import io.confluent.kafka.schemaregistry.client.rest.exceptions.RestClientException;
+import org.apache.avro.Schema;
+import org.apache.kafka.common.errors.SerializationException;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves the writer schemas referenced by id in the Confluent wire format, either through the schema registry
+ * or from schemas preloaded off the classpath ({@code avro.local.mode=true}).
+ */
+public interface SchemaResolver {
+    String LOCAL_MODE = "avro.local.mode";
+    String LOCAL_SCHEMAS = "avro.local.schemas";
+    String DEFAULT_LOCAL_SCHEMAS = "avro/outbox.key-v1.avsc,avro/outbox.value-v1.avsc";
+    String REGISTRY_URL = "schema.registry.url";
+
+    Schema schema(int id);
+
+    int id(String subject, Schema schema);
+
+    static SchemaResolver of(Map<String, ?> configs) {
+        if (Boolean.parseBoolean(String.valueOf(configs.get(LOCAL_MODE)))) {
+            var schemas = configs.get(LOCAL_SCHEMAS);
+            return LocalSchemaResolver.of(Arrays.asList(String.valueOf(schemas != null ? schemas : DEFAULT_LOCAL_SCHEMAS).split("\\s*,\\s*")));
+        }
+        var url = configs.get(REGISTRY_URL);
+        if (url == null) {
+            throw new IllegalArgumentException(REGISTRY_URL + " is required unless " + LOCAL_MODE + " is set");
+        }
+        return new RegistrySchemaResolver(new CachedSchemaRegistryClient(String.valueOf(url), 1000, configs));
+    }
+
+    class RegistrySchemaResolver implements SchemaResolver {
+        private final SchemaRegistryClient client;
+
+        RegistrySchemaResolver(SchemaRegistryClient client) {
+            this.client = client;
+        }
+
+        @Override
+        public Schema schema(int id) {
+            try {
+                return ((AvroSchema) client.getSchemaById(id)).rawSchema();
+            } catch (IOException | RestClientException e) {
+                throw new SerializationException("cannot fetch schema#" + id, e);
+            }
+        }
+
+        @Override
+        public int id(String subject, Schema schema) {
+            try {
+                return client.register(subject, new AvroSchema(schema));
+            } catch (IOException | RestClientException e) {
+                throw new SerializationException("cannot register schema of " + subject, e);
+            }
+        }
+    }
+
+    /**
+     * Schemas loaded from the classpath, numbered from 1 in the configured order. Both ends of a topic must be
+     * configured with the same list, which is the case for tests and benchmarks running without a registry.
+     */
+    class LocalSchemaResolver implements SchemaResolver {
+        private static final Map<List<String>, LocalSchemaResolver> INSTANCES = new ConcurrentHashMap<>();
+
+        private final Map<Integer, Schema> byId = new ConcurrentHashMap<>();
+        private final Map<Schema, Integer> ids = new ConcurrentHashMap<>();
+
+        static LocalSchemaResolver of(List<String> resources) {
+            return INSTANCES.computeIfAbsent(List.copyOf(resources), LocalSchemaResolver::new);
+        }
+
+        private LocalSchemaResolver(List<String> resources) {
+            var loader = LocalSchemaResolver.class.getClassLoader();
+            for (var i = 0; i < resources.size(); i++) {
+                try (var in = loader.getResourceAsStream(resources.get(i))) {
+                    if (in == null) {
+                        throw new IllegalArgumentException("schema not found on classpath: " + resources.get(i));
+                    }
+                    var schema = new Schema.Parser().parse(in);
+                    byId.put(i + 1, schema);
+                    ids.put(schema, i + 1);
+                } catch (IOException e) {
+                    throw new IllegalArgumentException("cannot read schema " + resources.get(i), e);
+                }
+            }
+        }
+
+        @Override
+        public Schema schema(int id) {
+            var schema = byId.get(id);
+            if (schema == null) {
+                throw new SerializationException("unknown local schema#" + id);
+            }
+            return schema;
+        }
+
+        @Override
+        public int id(String subject, Schema schema) {
+            var id = ids.get(schema);
+            if (id == null) {
+                throw new SerializationException("schema of " + subject + " is not preloaded: " + schema.getFullName());
+            }
+            return id;
+        }
+    }
+}
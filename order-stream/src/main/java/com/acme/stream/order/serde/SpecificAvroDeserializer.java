@@ -0,0 +1,73 @@
+package com.acme.stream.order.serde;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DatumReader;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.specific.SpecificData;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.serialization.Deserializer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Drop-in replacement for {@code KafkaAvroDeserializer} with {@code specific.avro.reader=true}. The datum reader
+ * resolved for each writer schema id is cached, and the binary decoder is reused between records; a deserializer
+ * instance belongs to one consumer, so none of this state is shared between threads. Each record is decoded into a
+ * new instance: a poll is deserialized as a whole before the listener gets it, and its records stay in flight together.
+ */
+public class SpecificAvroDeserializer implements Deserializer<Object> {
+    static final byte MAGIC_BYTE = 0x0;
+
+    private final Map<Integer, DatumReader<Object>> readers = new HashMap<>();
+    private SchemaResolver schemas;
+    private BinaryDecoder decoder;
+
+    public SpecificAvroDeserializer() {
+    }
+
+    public SpecificAvroDeserializer(SchemaResolver schemas) {
+        this.schemas = schemas;
+    }
+
+    @Override
+    public void configure(Map<String, ?> configs, boolean isKey) {
+        if (schemas == null) {
+            schemas = SchemaResolver.of(configs);
+        }
+    }
+
+    @Override
+    public Object deserialize(String topic, byte[] data) {
+        if (data == null) {
+            return null;
+        }
+        var buffer = ByteBuffer.wrap(data);
+        if (buffer.get() != MAGIC_BYTE) {
+            throw new SerializationException("unknown magic byte for topic " + topic);
+        }
+        var id = buffer.getInt();
+        var reader = readers.computeIfAbsent(id, this::reader);
+        decoder = DecoderFactory.get().binaryDecoder(data, buffer.position(), buffer.remaining(), decoder);
+        try {
+            return reader.read(null, decoder);
+        } catch (IOException | RuntimeException e) {
+            throw new SerializationException("cannot deserialize record with schema#" + id + " from topic " + topic, e);
+        }
+    }
+
+    private DatumReader<Object> reader(int id) {
+        var writer = schemas.schema(id);
+        var type = SpecificData.get().getClass(writer);
+        if (type == null) {
+            return new GenericDatumReader<>(writer);
+        }
+        Schema reader = SpecificData.get().getSchema(type);
+        return new SpecificDatumReader<>(writer, reader);
+    }
+}
@@ -0,0 +1,77 @@
+package com.acme.stream.order.serde;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericContainer;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.serialization.Serializer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Counterpart of {@link SpecificAvroDeserializer}: writes the Confluent wire format with the schema id resolved
+ * once per subject and schema (topic name strategy), reusing the datum writer. The producer is shared between
+ * threads, so the caches are concurrent and each thread keeps its own buffer and binary encoder.
+ */
+public class SpecificAvroSerializer implements Serializer<Object> {
+    private final Map<Subject, Integer> ids = new ConcurrentHashMap<>();
+    private final Map<Schema, DatumWriter<Object>> writers = new ConcurrentHashMap<>();
+    private final ThreadLocal<Buffer> buffers = ThreadLocal.withInitial(Buffer::new);
+    private SchemaResolver schemas;
+    private boolean isKey;
+
+    public SpecificAvroSerializer() {
+    }
+
+    public SpecificAvroSerializer(SchemaResolver schemas) {
+        this.schemas = schemas;
+    }
+
+    @Override
+    public void configure(Map<String, ?> configs, boolean isKey) {
+        if (schemas == null) {
+            schemas = SchemaResolver.of(configs);
+        }
+        this.isKey = isKey;
+    }
+
+    @Override
+    public byte[] serialize(String topic, Object data) {
+        if (data == null) {
+            return null;
+        }
+        if (!(data instanceof GenericContainer container)) {
+            throw new SerializationException("not an avro record: " + data.getClass());
+        }
+        var schema = container.getSchema();
+        var id = ids.computeIfAbsent(new Subject(topic + (isKey ? "-key" : "-value"), schema),
+                s -> schemas.id(s.subject(), s.schema()));
+        var writer = writers.computeIfAbsent(schema, SpecificDatumWriter::new);
+        var buffer = buffers.get();
+        try {
+            buffer.out.reset();
+            buffer.out.write(SpecificAvroDeserializer.MAGIC_BYTE);
+            buffer.out.write(ByteBuffer.allocate(4).putInt(id).array());
+            buffer.encoder = EncoderFactory.get().directBinaryEncoder(buffer.out, buffer.encoder);
+            writer.write(data, buffer.encoder);
+            buffer.encoder.flush();
+            return buffer.out.toByteArray();
+        } catch (IOException | RuntimeException e) {
+            throw new SerializationException("cannot serialize record with schema " + schema.getFullName() + " to topic " + topic, e);
+        }
+    }
+
+    private record Subject(String subject, Schema schema) {}
+
+    private static class Buffer {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        BinaryEncoder encoder;
+    }
+}
@@ -0,0 +1,104 @@
+package com.acme.stream.order;
+
+import com.acme.stream.order.SagaTable.Phase;
+import com.acme.stream.order.SagaTable.SagaState;
+import com.acme.stream.order.SagaTable.StepState;
+import com.acme.stream.order.SagaTable.StepStatus;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saga lifecycle (start, two step outcomes, removal) and lookups on {@link SagaTable} against the on-heap
+ * {@code ConcurrentHashMap<String, SagaState>} it replaces, with {@code inflight} sagas already tracked.
+ *
+ * <pre>
+ * mvn -pl order-stream test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=org.openjdk.jmh.Main -Dexec.args="SagaTableBenchmark -t 4 -prof gc"
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class SagaTableBenchmark {
+    private static final String PAYMENT_ID = "6441fde0ff591b2f1c9693b3";
+    private static final String STOCK_ID = "6441fde0ff591b2f1c9693b4";
+
+    @Param({"100000"})
+    int inflight;
+
+    String[] tracked;
+    String[] fresh;
+    SagaTable table;
+    ConcurrentHashMap<String, SagaState> map;
+
+    @Setup
+    public void setup() {
+        tracked = ids(inflight);
+        fresh = ids(1 << 16);
+        table = new SagaTable(16, inflight * 2);
+        map = new ConcurrentHashMap<>();
+        var expiresAt = System.currentTimeMillis() + 60_000;
+        for (var id : tracked) {
+            table.start(id, expiresAt);
+            table.step(id, 0, StepStatus.DONE, PAYMENT_ID);
+            map.put(id, state(Phase.RUNNING, StepStatus.DONE, PAYMENT_ID, StepStatus.PENDING, null, expiresAt));
+        }
+    }
+
+    static String[] ids(int n) {
+        var ids = new String[n];
+        for (var i = 0; i < n; i++) {
+            ids[i] = UUID.randomUUID().toString();
+        }
+        return ids;
+    }
+
+    static SagaState state(Phase phase, StepStatus payment, String paymentId, StepStatus stock, String stockId, long expiresAt) {
+        return new SagaState(phase, List.of(new StepState(payment, paymentId), new StepState(stock, stockId)), expiresAt);
+    }
+
+    private String freshId() {
+        return fresh[ThreadLocalRandom.current().nextInt(fresh.length)];
+    }
+
+    private String trackedId() {
+        return tracked[ThreadLocalRandom.current().nextInt(tracked.length)];
+    }
+
+    @Benchmark
+    public boolean tableLifecycle() {
+        var id = freshId();
+        table.start(id, System.currentTimeMillis() + 60_000);
+        table.step(id, 0, StepStatus.DONE, PAYMENT_ID);
+        table.step(id, 1, StepStatus.DONE, STOCK_ID);
+        return table.remove(id);
+    }
+
+    @Benchmark
+    public boolean mapLifecycle() {
+        var id = freshId();
+        var expiresAt = System.currentTimeMillis() + 60_000;
+        map.put(id, state(Phase.RUNNING, StepStatus.PENDING, null, StepStatus.PENDING, null, expiresAt));
+        map.computeIfPresent(id, (k, s) -> state(s.phase(), StepStatus.DONE, PAYMENT_ID, s.steps().get(1).status(), s.steps().get(1).id(), s.expiresAt()));
+        map.computeIfPresent(id, (k, s) -> state(s.phase(), s.steps().get(0).status(), s.steps().get(0).id(), StepStatus.DONE, STOCK_ID, s.expiresAt()));
+        return map.remove(id) != null;
+    }
+
+    @Benchmark
+    public SagaState tableLookup() {
+        return table.get(trackedId());
+    }
+
+    @Benchmark
+    public SagaState mapLookup() {
+        return map.get(trackedId());
+    }
+}
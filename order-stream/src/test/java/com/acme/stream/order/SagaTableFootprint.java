@@ -0,0 +1,72 @@
+package com.acme.stream.order;
+
+import com.acme.stream.order.SagaTable.Phase;
+import com.acme.stream.order.SagaTable.SagaState;
+import com.acme.stream.order.SagaTable.StepStatus;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Heap and direct memory taken by {@code n} in-flight sagas, in a {@link SagaTable} and in the
+ * {@code ConcurrentHashMap<String, SagaState>} it replaces. The eventIds themselves are allocated beforehand and
+ * kept alive by both, so only the tracking structure is measured.
+ *
+ * <pre>
+ * mvn -pl order-stream test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.acme.stream.order.SagaTableFootprint -Dexec.args="200000"
+ * </pre>
+ */
+public class SagaTableFootprint {
+
+    public static void main(String[] args) {
+        var n = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        var ids = SagaTableBenchmark.ids(n);
+        var expiresAt = System.currentTimeMillis() + 60_000;
+
+        var heap = heapUsed();
+        var direct = directUsed();
+        // a little headroom over MAX_LOAD, the segments do not fill evenly
+        var table = new SagaTable(16, (int) (n / (SagaTable.MAX_LOAD - 0.05)));
+        var tracked = 0;
+        for (var id : ids) {
+            if (table.start(id, expiresAt)) {
+                tracked++;
+            }
+            table.step(id, 0, StepStatus.DONE, "6441fde0ff591b2f1c9693b3");
+            table.step(id, 1, StepStatus.DONE, "6441fde0ff591b2f1c9693b4");
+        }
+        report("SagaTable", tracked, heapUsed() - heap, directUsed() - direct);
+
+        heap = heapUsed();
+        var map = new ConcurrentHashMap<String, SagaState>();
+        for (var id : ids) {
+            map.put(id, SagaTableBenchmark.state(Phase.RUNNING, StepStatus.DONE, new String("6441fde0ff591b2f1c9693b3"),
+                    StepStatus.DONE, new String("6441fde0ff591b2f1c9693b4"), expiresAt));
+        }
+        report("ConcurrentHashMap", map.size(), heapUsed() - heap, 0);
+
+        // keep both alive until measured
+        System.out.println(table.size() + map.size() > 0 ? "" : "empty");
+    }
+
+    static void report(String name, int entries, long heap, long direct) {
+        System.out.printf("%-18s %,9d sagas: heap %,12d B (%,6.1f B/saga), direct %,12d B (%,6.1f B/saga)%n",
+                name, entries, heap, (double) heap / entries, direct, (double) direct / entries);
+    }
+
+    static long heapUsed() {
+        for (var i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    static long directUsed() {
+        return ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class).stream()
+                .filter(b -> b.getName().equals("direct"))
+                .mapToLong(BufferPoolMXBean::getMemoryUsed)
+                .sum();
+    }
+}
@@ -0,0 +1,161 @@
+package com.acme.stream.order;
+
+import com.acme.stream.order.SagaTable.Phase;
+import com.acme.stream.order.SagaTable.StepStatus;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * The probing of {@link SagaTable}: entries must stay reachable while others are removed or swept around them,
+ * including in probe runs that wrap past the last slot of a segment, and ids must come back as they were stored.
+ */
+class SagaTableTest {
+
+    @Test
+    void keepsEntriesReachableAcrossRemovals() {
+        // a single small segment, so that probe runs are long and often wrap
+        var table = new SagaTable(1, 16);
+        var model = new HashMap<String, Long>();
+        var random = new Random(42);
+        for (var round = 0; round < 20_000; round++) {
+            var id = "event-" + random.nextInt(24);
+            if (random.nextBoolean()) {
+                var expiresAt = random.nextInt(1_000);
+                var started = table.start(id, expiresAt);
+                assertThat(started).isEqualTo(!model.containsKey(id) && model.size() < 12);
+                if (started) {
+                    model.put(id, (long) expiresAt);
+                }
+            } else {
+                assertThat(table.remove(id)).isEqualTo(model.remove(id) != null);
+            }
+            assertTracked(table, model, 24);
+        }
+    }
+
+    @Test
+    void sweepRemovesOnlyExpiredEntries() {
+        var random = new Random(7);
+        for (var round = 0; round < 2_000; round++) {
+            var table = new SagaTable(1, 16);
+            var model = new HashMap<String, Long>();
+            while (model.size() < 12) {
+                var id = "event-" + random.nextInt(1_000_000);
+                var expiresAt = (long) random.nextInt(100);
+                if (table.start(id, expiresAt)) {
+                    model.put(id, expiresAt);
+                }
+            }
+            var now = random.nextInt(100);
+            var expired = model.values().stream().filter(at -> at < now).count();
+            assertThat(table.sweep(now)).isEqualTo(expired);
+            model.values().removeIf(at -> at < now);
+            assertThat(table.size()).isEqualTo(model.size());
+            for (var e : model.entrySet()) {
+                assertThat(table.get(e.getKey())).isNotNull()
+                        .satisfies(state -> assertThat(state.expiresAt()).isEqualTo(e.getValue()));
+            }
+        }
+    }
+
+    @Test
+    void keepsStepsAndPhaseOfShiftedEntries() {
+        var table = new SagaTable(1, 16);
+        var ids = new ArrayList<String>();
+        for (var i = 0; ids.size() < 12; i++) {
+            if (table.start("event-" + i, Long.MAX_VALUE)) {
+                ids.add("event-" + i);
+            }
+        }
+        for (var i = 0; i < ids.size(); i++) {
+            table.step(ids.get(i), 0, StepStatus.DONE, "pay-" + i);
+            table.phase(ids.get(i), i % 2 == 0 ? Phase.COMPLETED : Phase.COMPENSATING);
+        }
+        for (var i = 0; i < ids.size(); i += 3) {
+            assertThat(table.remove(ids.get(i))).isTrue();
+        }
+        for (var i = 0; i < ids.size(); i++) {
+            var state = table.get(ids.get(i));
+            if (i % 3 == 0) {
+                assertThat(state).isNull();
+                continue;
+            }
+            assertThat(state.phase()).isEqualTo(i % 2 == 0 ? Phase.COMPLETED : Phase.COMPENSATING);
+            assertThat(state.steps().get(0).status()).isEqualTo(StepStatus.DONE);
+            assertThat(state.steps().get(0).id()).isEqualTo("pay-" + i);
+            assertThat(state.steps().get(1).status()).isEqualTo(StepStatus.PENDING);
+            assertThat(state.steps().get(1).id()).isNull();
+        }
+    }
+
+    @Test
+    void roundTripsIds() {
+        for (var id : new String[]{
+                "6441fde0ff591b2f1c9693b3",
+                "000000000000000000000000",
+                "ffffffffffffffffffffffff",
+                "3f2504e0-4f89-41d3-9a0c-0305e82c3301",
+                "00000000-0000-0000-0000-000000000000",
+                "",
+                "PAY-1",
+                "0123456789abcdef"}) {
+            assertThat(roundTrip(id)).as(id).isEqualTo(id);
+        }
+    }
+
+    @Test
+    void storesObjectIdsAndUuidsInBinary() {
+        assertThat(SagaTable.encode("6441fde0ff591b2f1c9693b3")).hasSize(1 + 12);
+        assertThat(SagaTable.encode("3f2504e0-4f89-41d3-9a0c-0305e82c3301")).hasSize(1 + 16);
+        // not lowercase hex: kept only when it fits as ascii
+        assertThat(SagaTable.encode("6441FDE0FF591B2F1C9693B3")).isNull();
+        assertThat(SagaTable.encode("3f2504e0_4f89_41d3_9a0c_0305e82c3301")).isNull();
+    }
+
+    @Test
+    void dropsIdsThatDoNotFit() {
+        assertThat(SagaTable.encode("0123456789abcdefg")).isNull();
+        assertThat(SagaTable.encode("paiement-\u00e9")).isNull();
+
+        var table = new SagaTable(1, 16);
+        table.start("event-1", Long.MAX_VALUE);
+        table.step("event-1", 1, StepStatus.DONE, "0123456789abcdefg");
+        var step = table.get("event-1").steps().get(1);
+        assertThat(step.status()).isEqualTo(StepStatus.DONE);
+        assertThat(step.id()).isNull();
+    }
+
+    private static String roundTrip(String id) {
+        var encoded = SagaTable.encode(id);
+        assertThat(encoded).as(id).isNotNull();
+        var buffer = ByteBuffer.allocate(SagaTable.ID_BYTES);
+        buffer.put(0, encoded, 1, encoded.length - 1);
+        var decoded = SagaTable.decode(encoded[0] & 0xff, buffer, 0);
+
+        var table = new SagaTable(1, 4);
+        table.start("event", Long.MAX_VALUE);
+        table.step("event", 0, StepStatus.DONE, id);
+        assertThat(table.get("event").steps().get(0).id()).as(id).isEqualTo(decoded);
+        return decoded;
+    }
+
+    private static void assertTracked(SagaTable table, HashMap<String, Long> model, int ids) {
+        assertThat(table.size()).isEqualTo(model.size());
+        for (var i = 0; i < ids; i++) {
+            var id = "event-" + i;
+            var state = table.get(id);
+            if (model.containsKey(id)) {
+                assertThat(state).as(id).isNotNull();
+                assertThat(state.expiresAt()).as(id).isEqualTo(model.get(id));
+            } else {
+                assertThat(state).as(id).isNull();
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.acme.stream.order;
+
+import com.acme.stream.order.Application.Payment;
+import com.acme.stream.order.Application.Stock;
+import com.acme.stream.order.Application.StockItem;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * Encoding and decoding of the saga call bodies in JSON and in Smile, with the mappers the WebFlux codecs build. The
+ * body sizes are printed once per fork; run with {@code -prof gc} for the allocation rate.
+ *
+ * <pre>
+ * mvn -pl order-stream test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=org.openjdk.jmh.Main -Dexec.args="WireFormatBenchmark -prof gc"
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WireFormatBenchmark {
+
+    @Param({"json", "smile"})
+    String format;
+
+    /** Stock items per allocation. */
+    @Param({"1", "10"})
+    int items;
+
+    ObjectMapper mapper;
+    Payment payment;
+    Stock stock;
+    byte[] paymentBytes;
+    byte[] stockBytes;
+
+    @Setup
+    public void setup() throws IOException {
+        mapper = format.equals("smile") ? Jackson2ObjectMapperBuilder.smile().build() : Jackson2ObjectMapperBuilder.json().build();
+        var now = new Date();
+        payment = new Payment("6441fde0ff591b2f1c9693b3", "PM-0000012345", now, "C001", "SO-0000012345", 1000.0);
+        stock = new Stock("8a0e4d0c-2f7b-4f7e-9a45-52a3f1c0d6b1", "SO-0000012345", now, "C001", IntStream.range(0, items)
+                .mapToObj(i -> new StockItem(String.format("S%03d", i + 1), String.format("B%012d", i + 1), 1))
+                .toList());
+        paymentBytes = mapper.writeValueAsBytes(payment);
+        stockBytes = mapper.writeValueAsBytes(stock);
+        System.out.printf("%n%s, %d item(s): payment %d B, stock %d B%n", format, items, paymentBytes.length, stockBytes.length);
+    }
+
+    @Benchmark
+    public byte[] encodePayment() throws IOException {
+        return mapper.writeValueAsBytes(payment);
+    }
+
+    @Benchmark
+    public Payment decodePayment() throws IOException {
+        return mapper.readValue(paymentBytes, Payment.class);
+    }
+
+    @Benchmark
+    public byte[] encodeStock() throws IOException {
+        return mapper.writeValueAsBytes(stock);
+    }
+
+    @Benchmark
+    public Stock decodeStock() throws IOException {
+        return mapper.readValue(stockBytes, Stock.class);
+    }
+
+    /** A saga step's round trip on both sides: request encoded and decoded, response encoded and decoded. */
+    @Benchmark
+    public Stock stockRoundTrip() throws IOException {
+        var request = mapper.readValue(mapper.writeValueAsBytes(stock), Stock.class);
+        return mapper.readValue(mapper.writeValueAsBytes(request), Stock.class);
+    }
+}
@@ -3,6 +3,7 @@ package com.acme.kafka.outbox;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.kafka.common.config.ConfigDef;
 import org.apache.kafka.connect.connector.ConnectRecord;
+import org.apache.kafka.connect.data.Field;
 import org.apache.kafka.connect.data.Schema;
 import org.apache.kafka.connect.data.SchemaBuilder;
 import org.apache.kafka.connect.data.Struct;
@@ -12,18 +13,34 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
+/**
+ * Routes the outbox documents captured by Debezium to {@code <aggregateType>.outbox}, as well as the documents
+ * inserted with their event in an embedded {@code outbox} document; captured documents without an event are
+ * dropped. A document with an
+ * {@code events} array is a batch: {@link #apply} forwards it as one {@code batch} event whose payload is the
+ * array, because a transformation returns a single record; order-stream expands it into one saga per event, each
+ * keyed by its own eventId. Only {@code order.write-mode: transactional} writes batch documents.
+ * <p>
+ * The document is read from Debezium's envelope, where {@code after} is its extended JSON (or a struct), or from the
+ * value itself once flattened by {@code ExtractNewDocumentState}; the representation is told apart by the schema.
+ */
 public class Router<R extends ConnectRecord<R>> implements Transformation<R> {
     private static final Logger LOGGER = LoggerFactory.getLogger(Router.class);
     private static final ObjectMapper MAPPER = new ObjectMapper();
 
-    private static final Schema SCHEMA_KEY = SchemaBuilder.struct()
+    static final Schema SCHEMA_KEY = SchemaBuilder.struct()
             .name("com.acme.kafka.outbox.avro.EventKey")
             .field("eventId", Schema.STRING_SCHEMA)
             .build();
 
-    private static final Schema SCHEMA_VALUE = SchemaBuilder.struct()
+    static final String BATCH = "batch";
+
+    static final Schema SCHEMA_VALUE = SchemaBuilder.struct()
             .name("com.acme.kafka.outbox.avro.EventValue")
             .field("eventType", Schema.STRING_SCHEMA)
             .field("timestamp", Schema.INT64_SCHEMA)
@@ -37,31 +54,82 @@ public class Router<R extends ConnectRecord<R>> implements Transformation<R> {
     }
 
     @Override
+    @SuppressWarnings("unchecked")
     public R apply(R record) {
         if (record.value() == null) {
             return record;
         }
 
         Struct struct = (Struct) record.value();
-        Long ts = struct.getInt64("ts_ms");
-        String op = struct.getString("op");
-        if (!op.equals("c")) {
+        Object document;
+        Long ts;
+        String op;
+        if (struct.schema().field("after") == null) {
+            // flattened by ExtractNewDocumentState: the value is the document, op and ts_ms are there if added
+            document = struct;
+            op = struct.schema().field("__op") != null ? struct.getString("__op") : "c";
+            ts = struct.schema().field("__ts_ms") != null ? struct.getInt64("__ts_ms") : null;
+            ts = ts != null ? ts : record.timestamp() != null ? record.timestamp() : System.currentTimeMillis();
+        } else {
+            document = struct.get("after");
+            op = struct.getString("op");
+            ts = struct.getInt64("ts_ms");
+        }
+        if (!"c".equals(op)) {
             return null;
         }
 
-        Map<String, String> after;
+        Map<String, Object> after;
+        String payload;
         try {
-            after = MAPPER.readValue(struct.getString("after"), Map.class);
+            after = document instanceof Struct
+                    ? toMap((Struct) document)
+                    : MAPPER.readValue((String) document, Map.class);
+            if (after.get("outbox") instanceof Map) {
+                // an order inserted with its event embedded
+                after = (Map<String, Object>) after.get("outbox");
+            } else if (after.get("eventId") == null) {
+                // a captured document without an event, e.g. an order written along with an outbox document
+                return null;
+            }
+            payload = after.containsKey("events")
+                    ? MAPPER.writeValueAsString(after.get("events"))
+                    : (String) after.get("payload");
         } catch (IOException e) {
-            LOGGER.error("error occurred {}, after: {}", e.getMessage(), struct.getString("after"));
+            LOGGER.error("error occurred {}, after: {}", e.getMessage(), document);
             return null;
         }
 
         String topic = String.format("%s.outbox", after.get("aggregateType"));
-        String eventId = after.get("eventId");
-        String eventType = after.get("eventType");
-        String payload = after.get("payload");
+        String eventId = (String) after.get("eventId");
+        String eventType = after.containsKey("events") ? BATCH : (String) after.get("eventType");
+        return route(record, topic, eventId, eventType, payload, ts, record.headers());
+    }
+
+    /** A structured document as the map its extended JSON would be read into. */
+    private static Map<String, Object> toMap(Struct struct) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (Field field : struct.schema().fields()) {
+            map.put(field.name(), toValue(struct.get(field)));
+        }
+        return map;
+    }
+
+    private static Object toValue(Object value) {
+        if (value instanceof Struct) {
+            return toMap((Struct) value);
+        }
+        if (value instanceof List) {
+            List<Object> list = new ArrayList<>(((List<?>) value).size());
+            for (Object element : (List<?>) value) {
+                list.add(toValue(element));
+            }
+            return list;
+        }
+        return value;
+    }
 
+    private R route(R record, String topic, String eventId, String eventType, String payload, Long ts, Headers headers) {
         Struct key = new Struct(SCHEMA_KEY)
                 .put("eventId", eventId);
 
@@ -70,7 +138,6 @@ public class Router<R extends ConnectRecord<R>> implements Transformation<R> {
                 .put("timestamp", ts)
                 .put("payload", payload);
 
-        Headers headers = record.headers();
         headers.addString("correlationId", eventId);
 
         LOGGER.debug("transform {}-{} and route to topic: {}", eventId, eventType, topic);
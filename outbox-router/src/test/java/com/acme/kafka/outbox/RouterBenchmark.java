@@ -0,0 +1,87 @@
+package com.acme.kafka.outbox;
+
+import org.apache.kafka.connect.data.Schema;
+import org.apache.kafka.connect.data.SchemaBuilder;
+import org.apache.kafka.connect.data.Struct;
+import org.apache.kafka.connect.source.SourceRecord;
+import org.apache.kafka.connect.transforms.Transformation;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Routing cost per record of both routers for both representations of the captured document: Debezium's envelope
+ * with the extended JSON {@code after} string ({@code json}), and the document flattened into a struct by
+ * {@code ExtractNewDocumentState} with {@code add.fields=op,ts_ms} ({@code struct}). Run with {@code -prof gc} for
+ * the bytes allocated per record.
+ *
+ * <pre>
+ * mvn -pl outbox-router test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=org.openjdk.jmh.Main -Dexec.args="RouterBenchmark -prof gc"
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RouterBenchmark {
+    static final Schema DOCUMENT = SchemaBuilder.struct()
+            .name("order.order.outboxes")
+            .field("_id", Schema.OPTIONAL_STRING_SCHEMA)
+            .field("eventId", Schema.OPTIONAL_STRING_SCHEMA)
+            .field("eventType", Schema.OPTIONAL_STRING_SCHEMA)
+            .field("aggregateType", Schema.OPTIONAL_STRING_SCHEMA)
+            .field("payload", Schema.OPTIONAL_STRING_SCHEMA)
+            .field("__op", Schema.OPTIONAL_STRING_SCHEMA)
+            .field("__ts_ms", Schema.OPTIONAL_INT64_SCHEMA)
+            .build();
+
+    private static final Map<String, ?> PARTITION = Collections.singletonMap("rs", "rs0");
+    private static final Map<String, ?> OFFSET = Collections.singletonMap("ord", 1);
+
+    @Param({"json", "struct"})
+    String format;
+
+    @Param({"Router", "TemplateRouter"})
+    String router;
+
+    Transformation<SourceRecord> transformation;
+    Struct[] values;
+    int next;
+
+    @Setup
+    public void setup() {
+        transformation = router.equals("Router") ? new Router<SourceRecord>() : new TemplateRouter<SourceRecord>();
+        values = format.equals("json") ? RouterHarness.values(1024) : documents(1024);
+    }
+
+    static Struct[] documents(int n) {
+        Struct[] documents = new Struct[n];
+        for (int i = 0; i < n; i++) {
+            documents[i] = new Struct(DOCUMENT)
+                    .put("_id", "6441fde0ff591b2f1c9693b3")
+                    .put("eventId", UUID.randomUUID().toString())
+                    .put("eventType", "order_created")
+                    .put("aggregateType", "order")
+                    .put("payload", "{\"id\":\"6441fde0ff591b2f1c9693b3\",\"orderNo\":null,\"orderDate\":1682046432000,"
+                            + "\"customerCode\":\"C001\",\"items\":[{\"sku\":\"S001\",\"barcode\":\"B001\",\"qty\":1,"
+                            + "\"amount\":1000.0}],\"amount\":1000.0}")
+                    .put("__op", "c")
+                    .put("__ts_ms", System.currentTimeMillis());
+        }
+        return documents;
+    }
+
+    @Benchmark
+    public SourceRecord route() {
+        Struct value = values[next++ & (values.length - 1)];
+        // a fresh record per event, as Debezium does; the routers add a header to it
+        return transformation.apply(new SourceRecord(PARTITION, OFFSET, "order.order.outboxes", 0,
+                null, null, value.schema(), value));
+    }
+}
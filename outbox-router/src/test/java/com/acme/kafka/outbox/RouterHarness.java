@@ -0,0 +1,157 @@
+package com.acme.kafka.outbox;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.kafka.connect.data.Schema;
+import org.apache.kafka.connect.data.SchemaBuilder;
+import org.apache.kafka.connect.data.Struct;
+import org.apache.kafka.connect.source.SourceRecord;
+import org.apache.kafka.connect.transforms.Transformation;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * Feeds synthetic Debezium MongoDB records through the routers on the calling thread and reports records/sec,
+ * allocated bytes per record and GC activity, i.e. the single-core ceiling of a Connect task. The two routers are
+ * first checked to route the records, batches included, to equivalent records, payloads compared as JSON.
+ *
+ * <pre>
+ * mvn -pl outbox-router test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.acme.kafka.outbox.RouterHarness -Dexec.args="5000000"
+ * </pre>
+ * Pin the JVM to one core (e.g. {@code taskset -c 0}) to get the per-task figure.
+ */
+public class RouterHarness {
+    static final Schema ENVELOPE = SchemaBuilder.struct()
+            .name("order.order.outboxes.Envelope")
+            .field("after", Schema.OPTIONAL_STRING_SCHEMA)
+            .field("op", Schema.STRING_SCHEMA)
+            .field("ts_ms", Schema.OPTIONAL_INT64_SCHEMA)
+            .build();
+
+    private static final Map<String, ?> PARTITION = Collections.singletonMap("rs", "rs0");
+    private static final Map<String, ?> OFFSET = Collections.singletonMap("ord", 1);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    public static void main(String[] args) throws IOException {
+        int records = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+        Struct[] values = values(1024);
+        compare(values);
+        compare(batches(64));
+
+        // warm up both code paths before measuring
+        run(new Router<SourceRecord>(), values, records / 5);
+        run(new TemplateRouter<SourceRecord>(), values, records / 5);
+        report("Router", new Router<SourceRecord>(), values, records);
+        report("TemplateRouter", new TemplateRouter<SourceRecord>(), values, records);
+    }
+
+    static Struct[] values(int n) {
+        Struct[] values = new Struct[n];
+        for (int i = 0; i < n; i++) {
+            String eventId = UUID.randomUUID().toString();
+            String after = "{\"_id\": {\"$oid\": \"6441fde0ff591b2f1c9693b3\"}, \"eventId\": \"" + eventId + "\", "
+                    + "\"eventType\": \"order_created\", \"aggregateType\": \"order\", "
+                    + "\"payload\": \"{\\\"id\\\":\\\"6441fde0ff591b2f1c9693b3\\\",\\\"orderNo\\\":null,\\\"orderDate\\\":1682046432000,"
+                    + "\\\"customerCode\\\":\\\"C001\\\",\\\"items\\\":[{\\\"sku\\\":\\\"S001\\\",\\\"barcode\\\":\\\"B001\\\",\\\"qty\\\":1,"
+                    + "\\\"amount\\\":1000.0}],\\\"amount\\\":1000.0}\"}";
+            values[i] = new Struct(ENVELOPE)
+                    .put("after", after)
+                    .put("op", "c")
+                    .put("ts_ms", System.currentTimeMillis());
+        }
+        return values;
+    }
+
+    static Struct[] batches(int n) {
+        Struct[] values = new Struct[n];
+        for (int i = 0; i < n; i++) {
+            // laid out as a document is printed, so the raw events slice differs from its re-serialized form
+            String after = "{\"_id\": {\"$oid\": \"6441fde0ff591b2f1c9693b3\"}, \"eventId\": \"" + UUID.randomUUID() + "\", "
+                    + "\"aggregateType\": \"order\", \"events\": [\n"
+                    + "  {\"eventId\": \"" + UUID.randomUUID() + "\", \"eventType\": \"order_created\", \"payload\": \"{\\\"id\\\":1}\"},\n"
+                    + "  {\"eventId\": \"" + UUID.randomUUID() + "\", \"eventType\": \"order_created\", \"payload\": \"{\\\"id\\\":2}\"}\n"
+                    + "]}";
+            values[i] = new Struct(ENVELOPE)
+                    .put("after", after)
+                    .put("op", "c")
+                    .put("ts_ms", System.currentTimeMillis());
+        }
+        return values;
+    }
+
+    /** Fails unless both routers yield the same topic, key, event type and timestamp, and payloads equal as JSON. */
+    static void compare(Struct[] values) throws IOException {
+        Router<SourceRecord> router = new Router<>();
+        TemplateRouter<SourceRecord> template = new TemplateRouter<>();
+        for (Struct value : values) {
+            SourceRecord expected = router.apply(new SourceRecord(PARTITION, OFFSET, "order.order.outboxes", 0,
+                    null, null, ENVELOPE, value));
+            SourceRecord actual = template.apply(new SourceRecord(PARTITION, OFFSET, "order.order.outboxes", 0,
+                    null, null, ENVELOPE, value));
+            Struct expectedValue = (Struct) expected.value();
+            Struct actualValue = (Struct) actual.value();
+            boolean batch = Router.BATCH.equals(expectedValue.getString("eventType"));
+            if (!expected.topic().equals(actual.topic())
+                    || !expected.key().equals(actual.key())
+                    || !expectedValue.getString("eventType").equals(actualValue.getString("eventType"))
+                    || !Objects.equals(expected.timestamp(), actual.timestamp())
+                    || !(batch
+                    ? MAPPER.readTree(expectedValue.getString("payload")).equals(MAPPER.readTree(actualValue.getString("payload")))
+                    : expectedValue.getString("payload").equals(actualValue.getString("payload")))) {
+                throw new IllegalStateException("routers disagree: " + expected + " vs " + actual);
+            }
+        }
+    }
+
+    static long run(Transformation<SourceRecord> router, Struct[] values, int records) {
+        long routed = 0;
+        for (int i = 0; i < records; i++) {
+            // a fresh record per event, as Debezium does; the routers add a header to it
+            SourceRecord record = new SourceRecord(PARTITION, OFFSET, "order.order.outboxes", 0,
+                    null, null, ENVELOPE, values[i & (values.length - 1)]);
+            if (router.apply(record) != null) {
+                routed++;
+            }
+        }
+        return routed;
+    }
+
+    static void report(String name, Transformation<SourceRecord> router, Struct[] values, int records) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long gcCount = gcCount();
+        long gcTime = gcTime();
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+
+        long routed = run(router, values, records);
+
+        long elapsed = System.nanoTime() - start;
+        allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+        System.out.printf("%-16s %,d records in %,d ms => %,.0f records/sec, %,d bytes/record, %d gc (%d ms)%n",
+                name, routed, elapsed / 1_000_000, routed * 1e9 / elapsed, allocated / records,
+                gcCount() - gcCount, gcTime() - gcTime);
+    }
+
+    static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += gc.getCollectionCount();
+        }
+        return count;
+    }
+
+    static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += gc.getCollectionTime();
+        }
+        return time;
+    }
+}
@@ -1,28 +1,68 @@
 package com.acme.service.payment;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.observation.ObservationRegistry;
 import io.micrometer.observation.ObservationTextPublisher;
 import lombok.*;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.springframework.aot.hint.annotation.RegisterReflectionForBinding;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.http.HttpStatus;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.stereotype.Service;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.Disposable;
 import reactor.core.observability.micrometer.Micrometer;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
 
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.Date;
-import java.util.Random;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 import java.util.function.Supplier;
 
 
 @SpringBootApplication
+@EnableConfigurationProperties({Application.FaultInjectionProperties.class, Application.PaymentBatchingProperties.class,
+        Application.GatewayProperties.class, Application.IdempotencyProperties.class})
+@EnableScheduling
+@RegisterReflectionForBinding(Application.Payment.class)
 public class Application {
     public static void main(String[] args) {
-        SpringApplication.run(Application.class, args);
+        var context = SpringApplication.run(Application.class, args);
+        if (Boolean.getBoolean("app.training-run")) {
+            // AppCDS training run (see Dockerfile.cds): exit once the context is refreshed
+            System.exit(SpringApplication.exit(context));
+        }
     }
 
     @Configuration
@@ -35,33 +75,261 @@ public class Application {
 
     @RestController
     @RequiredArgsConstructor
-    @Slf4j
     static class PaymentController {
-        private final Supplier<Long> latency = () -> new Random().nextLong(500);
-
-        private final ObservationRegistry registry;
+        private final PaymentService service;
+        private final IdempotentRequests requests;
 
         @PostMapping("/payments")
         @ResponseStatus(HttpStatus.CREATED)
-        public Mono<Payment> createPayment(@RequestBody Payment payment) {
-            var lat = latency.get();
-            return Mono.just(payment)
-                    .doOnSuccess(o -> log.info("received create payment request => {}", payment))
-                    .delayElement(Duration.ofMillis(lat))
-                    .name("service.payment.create")
-                    .tag("latency", lat > 250 ? "high" : "low")
-                    .tap(Micrometer.observation(registry));
+        public Mono<Payment> createPayment(@RequestBody Payment payment,
+                                           @RequestHeader(name = "x-request-id", required = false) String requestId) {
+            return requests.once("create-payment", requestId, () -> service.createPayment(payment));
         }
 
         @DeleteMapping("/payments/{id}")
         public Mono<String> cancelPayment(@PathVariable("id") String id) {
-            var lat = latency.get();
+            return service.cancelPayment(id);
+        }
+    }
+
+    @Service
+    @RequiredArgsConstructor
+    @Slf4j
+    static class PaymentService {
+        private final ObservationRegistry registry;
+        private final FaultInjector faults;
+        private final PaymentBatcher batcher;
+
+        public Mono<Payment> createPayment(Payment payment) {
+            return batcher.authorize(payment)
+                    .map(a -> {
+                        if (!a.approved()) {
+                            throw new ResponseStatusException(HttpStatus.PAYMENT_REQUIRED, a.reason());
+                        }
+                        if (payment.getId() == null) {
+                            payment.setId(UUID.randomUUID().toString());
+                        }
+                        if (payment.getPaymentNo() == null) {
+                            payment.setPaymentNo(a.authorizationNo());
+                        }
+                        payment.setPaymentDate(new Date());
+                        return payment;
+                    })
+                    .doOnSuccess(o -> log.info("received create payment request => {}", payment))
+                    .name("service.payment.create")
+                    .tap(Micrometer.observation(registry))
+                    .transform(faults.inject("create-payment", payment.getCustomerCode()));
+        }
+
+        public Mono<String> cancelPayment(String id) {
             return Mono.just(id)
                     .doOnSuccess(o -> log.info("received cancel payment request => {}", id))
-                    .delayElement(Duration.ofMillis(lat))
                     .name("service.payment.cancel")
-                    .tag("latency", lat > 250 ? "high" : "low")
-                    .tap(Micrometer.observation(registry));
+                    .tap(Micrometer.observation(registry))
+                    .transform(faults.inject("cancel-payment", id));
+        }
+    }
+
+    @ConfigurationProperties("payment.batching")
+    record PaymentBatchingProperties(@DefaultValue("false") boolean enabled,
+                                     @DefaultValue("50") int maxSize,
+                                     @DefaultValue("5ms") Duration linger,
+                                     @DefaultValue("4") int maxInFlight,
+                                     @DefaultValue("4s") Duration timeout) {}
+
+    /**
+     * Micro-batching of the authorizations: the payments arriving within {@code payment.batching.linger}, up to
+     * {@code max-size} of them, go to the gateway in one call, with at most {@code max-in-flight} calls at a time,
+     * and each caller gets the authorization at its position in the response. Should the batching pipeline ever
+     * terminate, a new one takes over; a payment gives up after {@code payment.batching.timeout} either way.
+     */
+    @Component
+    @Slf4j
+    static class PaymentBatcher implements DisposableBean {
+        private final PaymentGateway gateway;
+        private final PaymentBatchingProperties properties;
+        private final DistributionSummary batchSize;
+        private volatile Sinks.Many<PendingPayment> requests;
+        private volatile Disposable batches;
+        private volatile boolean destroyed;
+
+        PaymentBatcher(PaymentGateway gateway, PaymentBatchingProperties properties, MeterRegistry meterRegistry) {
+            this.gateway = gateway;
+            this.properties = properties;
+            this.batchSize = DistributionSummary.builder("payment.batch.size").register(meterRegistry);
+            start();
+        }
+
+        private synchronized void start() {
+            if (destroyed) {
+                return;
+            }
+            var sink = Sinks.many().unicast().<PendingPayment>onBackpressureBuffer();
+            requests = sink;
+            batches = sink.asFlux()
+                    .bufferTimeout(properties.maxSize(), properties.linger())
+                    // batches closed by the linger timer wait here while max-in-flight calls are pending
+                    .onBackpressureBuffer()
+                    .flatMap(this::send, properties.maxInFlight())
+                    .subscribe(null, e -> {
+                        log.error("payment batching stopped, restarting it", e);
+                        start();
+                    });
+        }
+
+        public Mono<Authorization> authorize(Payment payment) {
+            if (!properties.enabled()) {
+                return gateway.authorize(List.of(payment)).map(a -> a.get(0));
+            }
+            return Mono.defer(() -> {
+                var pending = new PendingPayment(payment, Sinks.one());
+                requests.emitNext(pending, Sinks.EmitFailureHandler.busyLooping(Duration.ofMillis(100)));
+                return pending.result().asMono().timeout(properties.timeout());
+            });
+        }
+
+        private Mono<Void> send(List<PendingPayment> batch) {
+            batchSize.record(batch.size());
+            return Mono.defer(() -> gateway.authorize(batch.stream().map(PendingPayment::payment).toList()))
+                    .doOnNext(authorizations -> {
+                        if (authorizations.size() != batch.size()) {
+                            throw new IllegalStateException(String.format("gateway answered %d of %d payments", authorizations.size(), batch.size()));
+                        }
+                        for (var i = 0; i < batch.size(); i++) {
+                            batch.get(i).result().tryEmitValue(authorizations.get(i));
+                        }
+                    })
+                    .onErrorResume(e -> {
+                        log.warn("authorization of {} payment(s) failed: {}", batch.size(), e.toString());
+                        batch.forEach(p -> p.result().tryEmitError(e));
+                        return Mono.empty();
+                    })
+                    .then();
+        }
+
+        @Override
+        public synchronized void destroy() {
+            destroyed = true;
+            batches.dispose();
+        }
+    }
+
+    record PendingPayment(Payment payment, Sinks.One<Authorization> result) {}
+
+    /** A payment gateway authorizing payments in batches, answering in the order of the payments. */
+    interface PaymentGateway {
+        Mono<List<Authorization>> authorize(List<Payment> payments);
+    }
+
+    record Authorization(String authorizationNo, boolean approved, String reason) {}
+
+    /**
+     * Per-call latency model of a remote gateway: {@code base-latency} per call plus {@code per-item-latency} per
+     * payment, both varied by {@code jitter}. No latency unless set, as with the {@code simulated-gateway} profile.
+     */
+    @ConfigurationProperties("payment.gateway")
+    record GatewayProperties(@DefaultValue("0ms") Duration baseLatency,
+                             @DefaultValue("0ms") Duration perItemLatency,
+                             @DefaultValue("0.2") double jitter,
+                             @DefaultValue("0.0") double declineRate) {}
+
+    /** In-process gateway stand-in, the only {@link PaymentGateway} until a real one replaces it. */
+    @Component
+    @RequiredArgsConstructor
+    static class SimulatedPaymentGateway implements PaymentGateway {
+        private final GatewayProperties properties;
+
+        @Override
+        public Mono<List<Authorization>> authorize(List<Payment> payments) {
+            var random = ThreadLocalRandom.current();
+            var nanos = properties.baseLatency().toNanos() + properties.perItemLatency().toNanos() * payments.size();
+            var latency = Duration.ofNanos((long) (nanos * (1 + properties.jitter() * (2 * random.nextDouble() - 1))));
+            var answered = latency.isZero() ? Mono.just(0L) : Mono.delay(latency);
+            return answered
+                    .map(t -> payments.stream()
+                            .map(p -> ThreadLocalRandom.current().nextDouble() < properties.declineRate()
+                                    ? new Authorization(null, false, "declined")
+                                    : new Authorization(UUID.randomUUID().toString(), true, null))
+                            .toList());
+        }
+    }
+
+    /**
+     * Saga commands from order-stream over Kafka, consumed while {@code saga.messaging.enabled} is set. A polled
+     * batch is handled with up to {@code saga.messaging.concurrency} commands in flight, and each command is answered
+     * on the topic of its {@code kafka_replyTopic} header with its correlation id and a status.
+     */
+    @Component
+    @Slf4j
+    static class PaymentCommandHandler {
+        private final ObjectMapper mapper;
+        private final PaymentService service;
+        private final IdempotentRequests requests;
+        private final KafkaTemplate<String, String> template;
+        private final int concurrency;
+
+        PaymentCommandHandler(ObjectMapper mapper, PaymentService service, IdempotentRequests requests,
+                              KafkaTemplate<String, String> template, @Value("${saga.messaging.concurrency:16}") int concurrency) {
+            this.mapper = mapper;
+            this.service = service;
+            this.requests = requests;
+            this.template = template;
+            this.concurrency = concurrency;
+        }
+
+        @KafkaListener(id = "payment-command", topics = "${saga.messaging.command-topic:payment.command}", batch = "true",
+                autoStartup = "${saga.messaging.enabled:false}")
+        public void onCommands(List<ConsumerRecord<String, String>> commands) {
+            log.debug("received {} payment command(s)", commands.size());
+            Flux.fromIterable(commands)
+                    .flatMap(this::handle, concurrency)
+                    .then()
+                    .block();
+        }
+
+        private Mono<Void> handle(ConsumerRecord<String, String> command) {
+            var action = header(command, "saga-action");
+            Mono<String> result = switch (String.valueOf(action)) {
+                case "execute" -> Mono.fromCallable(() -> mapper.readValue(command.value(), Payment.class))
+                        .flatMap(o -> requests.once("create-payment", header(command, "x-request-id"), () -> service.createPayment(o)))
+                        .map(this::write);
+                case "rollback" -> Mono.fromCallable(() -> mapper.readValue(command.value(), Payment.class))
+                        .flatMap(o -> service.cancelPayment(o.getId()));
+                default -> Mono.error(new IllegalArgumentException("unknown saga action: " + action));
+            };
+            return result
+                    .map(body -> reply(command, "ok", body, null))
+                    .onErrorResume(e -> Mono.just(reply(command, "error", null, e.toString())))
+                    .flatMap(reply -> reply.topic() != null ? Mono.fromFuture(template.send(reply)) : Mono.empty())
+                    .then();
+        }
+
+        private String write(Object o) {
+            try {
+                return mapper.writeValueAsString(o);
+            } catch (JsonProcessingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private ProducerRecord<String, String> reply(ConsumerRecord<String, String> command, String status, String body, String error) {
+            var reply = new ProducerRecord<>(header(command, KafkaHeaders.REPLY_TOPIC), command.key(), body);
+            reply.headers().add("saga-status", status.getBytes(StandardCharsets.UTF_8));
+            for (var name : List.of("saga-correlation-id", "x-request-id")) {
+                var header = command.headers().lastHeader(name);
+                if (header != null) {
+                    reply.headers().add(name, header.value());
+                }
+            }
+            if (error != null) {
+                reply.headers().add("saga-error", error.getBytes(StandardCharsets.UTF_8));
+            }
+            return reply;
+        }
+
+        private static String header(ConsumerRecord<?, ?> record, String name) {
+            var header = record.headers().lastHeader(name);
+            return header != null ? new String(header.value(), StandardCharsets.UTF_8) : null;
         }
     }
 
@@ -78,4 +346,126 @@ public class Application {
         private String refNo;
         private Double amount;
     }
+
+    /** Faults of {@code create-payment}, keyed by customerCode, and {@code cancel-payment}, keyed by payment id. */
+    @ConfigurationProperties("fault-injection")
+    record FaultInjectionProperties(boolean enabled, Map<String, Fault> endpoints) {
+        FaultInjectionProperties {
+            endpoints = endpoints != null ? endpoints : Map.of();
+        }
+    }
+
+    record Fault(LatencyDistribution distribution, Duration min, Duration max, Duration mean, double errorRate, Set<String> keys) {
+        Fault {
+            distribution = distribution != null ? distribution : LatencyDistribution.NONE;
+            min = min != null ? min : Duration.ZERO;
+            max = max != null && max.compareTo(min) > 0 ? max : min;
+            mean = mean != null ? mean : Duration.ZERO;
+            keys = keys != null ? keys : Set.of();
+        }
+
+        boolean targets(String key) {
+            return keys.isEmpty() || keys.contains(key);
+        }
+
+        Duration nextLatency(ThreadLocalRandom random) {
+            return switch (distribution) {
+                case NONE -> Duration.ZERO;
+                case FIXED -> mean;
+                case UNIFORM -> Duration.ofMillis(random.nextLong(min.toMillis(), max.toMillis() + 1));
+                case EXPONENTIAL -> {
+                    var millis = min.toMillis() + (long) (-mean.toMillis() * Math.log(1 - random.nextDouble()));
+                    yield Duration.ofMillis(max.compareTo(min) > 0 ? Math.min(millis, max.toMillis()) : millis);
+                }
+            };
+        }
+    }
+
+    enum LatencyDistribution { NONE, FIXED, UNIFORM, EXPONENTIAL }
+
+    @Component
+    @RequiredArgsConstructor
+    static class FaultInjector {
+        private final FaultInjectionProperties properties;
+        private final MeterRegistry meterRegistry;
+
+        public <T> Function<Mono<T>, Mono<T>> inject(String endpoint, String key) {
+            var fault = properties.enabled() ? properties.endpoints().get(endpoint) : null;
+            if (fault == null || !fault.targets(key)) {
+                return mono -> mono;
+            }
+            return mono -> Mono.defer(() -> {
+                var random = ThreadLocalRandom.current();
+                var latency = fault.nextLatency(random);
+                var source = random.nextDouble() < fault.errorRate()
+                        ? Mono.<T>error(() -> new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "injected fault: " + endpoint)).doOnSubscribe(s -> meterRegistry.counter("fault.injected.errors", "endpoint", endpoint).increment())
+                        : mono;
+                if (latency.isZero()) {
+                    return source;
+                }
+                return Mono.delay(latency)
+                        .doOnNext(t -> meterRegistry.timer("fault.injected.latency", "endpoint", endpoint).record(latency))
+                        .then(source);
+            });
+        }
+    }
+
+    @ConfigurationProperties("idempotency")
+    record IdempotencyProperties(@DefaultValue("true") boolean enabled, @DefaultValue("2m") Duration ttl) {}
+
+    /**
+     * Requests deduplicated by their {@code x-request-id}, such as the retried calls of the order-stream saga: a
+     * repeated id joins the pending result of the first request, or gets its result, until {@code idempotency.ttl}
+     * after the first one was received. A failed request is forgotten so that it can be retried. The ids are kept in
+     * memory like the rest of this service's state, so only the requests reaching the same instance are deduplicated.
+     */
+    @Component
+    static class IdempotentRequests {
+        private final Map<String, Request> requests = new ConcurrentHashMap<>();
+        private final IdempotencyProperties properties;
+        private final MeterRegistry meterRegistry;
+
+        IdempotentRequests(IdempotencyProperties properties, MeterRegistry meterRegistry) {
+            this.properties = properties;
+            this.meterRegistry = meterRegistry;
+            Gauge.builder("idempotency.requests", requests, Map::size).register(meterRegistry);
+        }
+
+        @SuppressWarnings("unchecked")
+        public <T> Mono<T> once(String operation, String requestId, Supplier<Mono<T>> call) {
+            if (!properties.enabled() || requestId == null) {
+                return Mono.defer(call);
+            }
+            var key = operation + ":" + requestId;
+            return Mono.defer(() -> {
+                var created = new AtomicBoolean();
+                var request = requests.computeIfAbsent(key, k -> {
+                    created.set(true);
+                    return new Request(k, call);
+                });
+                if (!created.get()) {
+                    meterRegistry.counter("idempotency.repeated", "operation", operation).increment();
+                }
+                return (Mono<T>) request.result;
+            });
+        }
+
+        @Scheduled(fixedDelayString = "${idempotency.sweep-interval:PT10S}")
+        public void sweep() {
+            var before = System.nanoTime() - properties.ttl().toNanos();
+            requests.values().removeIf(r -> r.receivedAt - before < 0);
+        }
+
+        private final class Request {
+            private final long receivedAt = System.nanoTime();
+            private final Mono<?> result;
+
+            Request(String key, Supplier<? extends Mono<?>> call) {
+                // shared by the repeated requests; the first one going away does not cancel the call
+                this.result = Mono.defer(call)
+                        .doOnError(e -> requests.remove(key, this))
+                        .cache();
+            }
+        }
+    }
 }
@@ -0,0 +1,89 @@
+package com.acme.service.payment;
+
+import com.acme.service.payment.Application.GatewayProperties;
+import com.acme.service.payment.Application.Payment;
+import com.acme.service.payment.Application.PaymentBatcher;
+import com.acme.service.payment.Application.PaymentBatchingProperties;
+import com.acme.service.payment.Application.SimulatedPaymentGateway;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Throughput and latency of {@link PaymentBatcher} against the simulated gateway for a grid of batch settings, with
+ * {@code clients} callers each authorizing one payment after the other for {@code seconds} per setting.
+ *
+ * <pre>
+ * mvn -pl payment-service test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.acme.service.payment.PaymentBatchingBenchmark -Dexec.args="256 10"
+ * </pre>
+ */
+public class PaymentBatchingBenchmark {
+    private static final GatewayProperties GATEWAY = new GatewayProperties(Duration.ofMillis(20), Duration.ofNanos(200_000), 0.2, 0.0);
+
+    public static void main(String[] args) {
+        var clients = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        var seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        var settings = new PaymentBatchingProperties[]{
+                new PaymentBatchingProperties(false, 1, Duration.ofMillis(1), clients, Duration.ofSeconds(4)),
+                new PaymentBatchingProperties(true, 10, Duration.ofMillis(1), 4, Duration.ofSeconds(4)),
+                new PaymentBatchingProperties(true, 50, Duration.ofMillis(5), 4, Duration.ofSeconds(4)),
+                new PaymentBatchingProperties(true, 200, Duration.ofMillis(10), 4, Duration.ofSeconds(4)),
+                new PaymentBatchingProperties(true, 50, Duration.ofMillis(5), 16, Duration.ofSeconds(4)),
+        };
+
+        System.out.printf("%d clients, gateway %s + %s/payment%n", clients, GATEWAY.baseLatency(), GATEWAY.perItemLatency());
+        run(settings[2], clients, 2);
+        for (var setting : settings) {
+            run(setting, clients, seconds);
+        }
+    }
+
+    static void run(PaymentBatchingProperties setting, int clients, int seconds) {
+        var registry = new SimpleMeterRegistry();
+        var batcher = new PaymentBatcher(new SimulatedPaymentGateway(GATEWAY), setting, registry);
+        var latencies = new long[1 << 22];
+        var count = new AtomicInteger();
+        var deadline = System.nanoTime() + Duration.ofSeconds(seconds).toNanos();
+
+        Flux.range(0, clients)
+                .flatMap(client -> Mono.defer(() -> {
+                            var start = System.nanoTime();
+                            return batcher.authorize(payment(client))
+                                    .doOnNext(a -> {
+                                        var i = count.getAndIncrement();
+                                        if (i < latencies.length) {
+                                            latencies[i] = System.nanoTime() - start;
+                                        }
+                                    });
+                        })
+                        .repeat(() -> System.nanoTime() < deadline), clients)
+                .blockLast();
+        batcher.destroy();
+
+        var n = Math.min(count.get(), latencies.length);
+        var sorted = Arrays.copyOf(latencies, n);
+        Arrays.sort(sorted);
+        var batches = registry.get("payment.batch.size").summary();
+        System.out.printf("batching %-5s max-size %3d linger %-6s in-flight %2d | %,9.0f payments/s | p50 %6.1f ms p99 %6.1f ms"
+                        + " | %,7d gateway calls, %5.1f payments/call%n",
+                setting.enabled(), setting.maxSize(), setting.linger().toMillis() + "ms", setting.maxInFlight(),
+                count.get() / (double) seconds, percentile(sorted, 50), percentile(sorted, 99),
+                setting.enabled() ? batches.count() : count.get(), setting.enabled() ? batches.mean() : 1.0);
+    }
+
+    static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(p / 100 * sorted.length) - 1)] / 1e6;
+    }
+
+    static Payment payment(int client) {
+        return Payment.builder().customerCode("C" + client).refNo("SO-" + client).amount(1000.0).build();
+    }
+}
@@ -0,0 +1,122 @@
+package com.acme.loadtest;
+
+import com.acme.kafka.outbox.avro.EventKey;
+import com.acme.kafka.outbox.avro.EventValue;
+import com.acme.stream.order.serde.SchemaResolver;
+import com.acme.stream.order.serde.SpecificAvroSerializer;
+import org.HdrHistogram.Histogram;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.kafka.test.EmbeddedKafkaBroker;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saga throughput harness that needs no network: order-stream runs in-process against an embedded Kafka broker,
+ * payment-service and stock-service are replaced by {@link StandIn}s, and {@code order.outbox} events are injected
+ * at a fixed rate. Prints sagas/sec and p50/p99/p999 completion latency every 5 seconds and for the whole run.
+ *
+ * <pre>
+ * mvn -pl saga-loadtest -am install -DskipTests
+ * mvn -pl saga-loadtest exec:java -Drate=200 -Dduration=60 -Dpartitions=4 -Dconcurrency=4 \
+ *     -Dpayment.latency-max-ms=100 -Dstock.error-rate=0.01
+ * </pre>
+ */
+public class SagaLoadTest {
+    private static final String TOPIC = "order.outbox";
+    private static final String PAYLOAD = "{\"id\":\"%s\",\"orderNo\":\"%s\",\"orderDate\":%d,\"customerCode\":\"C001\","
+            + "\"items\":[{\"sku\":\"S001\",\"barcode\":\"B001\",\"qty\":1,\"amount\":1000.0}],\"amount\":1000.0}";
+
+    public static void main(String[] args) throws Exception {
+        var rate = Integer.getInteger("rate", 100);
+        var duration = Duration.ofSeconds(Long.getLong("duration", 60));
+        var partitions = Integer.getInteger("partitions", 4);
+        var concurrency = Integer.getInteger("concurrency", partitions);
+
+        var tracker = new SagaTracker();
+        var payments = new StandIn("/payments", StandIn.Profile.of("payment"));
+        var stocks = new StandIn("/stocks", StandIn.Profile.of("stock"));
+
+        var broker = new EmbeddedKafkaBroker(1, false, partitions, TOPIC);
+        broker.afterPropertiesSet();
+        var brokers = broker.getBrokersAsString();
+
+        var stream = new SpringApplicationBuilder(com.acme.stream.order.Application.class)
+                .profiles("local-avro")
+                .initializers(context -> context.getBeanFactory().registerSingleton("sagaLoadTestTracker", tracker))
+                .properties(Map.ofEntries(
+                        Map.entry("server.port", "0"),
+                        Map.entry("logging.config", "classpath:logback-loadtest.xml"),
+                        Map.entry("management.tracing.enabled", "false"),
+                        // only failed compensations are parked in mongo, so the run does not need one by default
+                        Map.entry("spring.data.mongodb.uri", System.getProperty("mongo.uri",
+                                "mongodb://localhost:27017/order?serverSelectionTimeoutMS=1000")),
+                        Map.entry("spring.kafka.bootstrap-servers", brokers),
+                        Map.entry("spring.kafka.producer.bootstrap-servers", brokers),
+                        Map.entry("spring.kafka.consumer.bootstrap-servers", brokers),
+                        Map.entry("spring.kafka.consumer.auto-offset-reset", "earliest"),
+                        Map.entry("spring.kafka.listener.concurrency", String.valueOf(concurrency)),
+                        Map.entry("remote-url.payment-service", payments.start()),
+                        Map.entry("remote-url.stock-service", stocks.start()),
+                        Map.entry("saga.compensation.worker.enabled", "false")))
+                .run();
+
+        var producer = new KafkaProducer<EventKey, EventValue>(Map.of(
+                ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, brokers,
+                ProducerConfig.LINGER_MS_CONFIG, 1,
+                ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, SpecificAvroSerializer.class,
+                ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, SpecificAvroSerializer.class,
+                SchemaResolver.LOCAL_MODE, true));
+        producer.partitionsFor(TOPIC);
+
+        System.out.printf("injecting %d sagas/sec for %ds into %d partition(s), listener concurrency %d%n",
+                rate, duration.toSeconds(), partitions, concurrency);
+        var scheduler = Executors.newSingleThreadScheduledExecutor();
+        var start = System.nanoTime();
+        var tick = Duration.ofMillis(10);
+        scheduler.scheduleAtFixedRate(() -> {
+            var due = (System.nanoTime() - start) * rate / 1_000_000_000L;
+            while (tracker.injected() < due) {
+                var eventId = UUID.randomUUID().toString();
+                var now = System.currentTimeMillis();
+                var payload = String.format(PAYLOAD, eventId, "SO-" + eventId.substring(0, 8), now);
+                tracker.injected(eventId);
+                producer.send(new ProducerRecord<>(TOPIC, new EventKey(eventId), new EventValue("order_created", now, payload)));
+            }
+        }, 0, tick.toMillis(), TimeUnit.MILLISECONDS);
+        var reporter = Executors.newSingleThreadScheduledExecutor();
+        reporter.scheduleAtFixedRate(() -> report("5s", tracker, tracker.interval(), 5), 5, 5, TimeUnit.SECONDS);
+
+        Thread.sleep(duration.toMillis());
+        scheduler.shutdownNow();
+        var injectedFor = (System.nanoTime() - start) / 1e9;
+        for (var i = 0; i < 300 && tracker.inFlight() > 0; i++) {
+            Thread.sleep(100);
+        }
+        reporter.shutdownNow();
+        tracker.interval();
+        report("total", tracker, tracker.total(), injectedFor);
+
+        producer.close();
+        stream.close();
+        payments.stop();
+        stocks.stop();
+        broker.destroy();
+        System.exit(0);
+    }
+
+    static void report(String label, SagaTracker tracker, Histogram latencies, double seconds) {
+        System.out.printf("[%5s] %,.1f sagas/sec, p50 %,.1f ms, p99 %,.1f ms, p999 %,.1f ms, max %,.1f ms"
+                        + " | injected %,d, completed %,d, compensated %,d, in flight %,d%n",
+                label, latencies.getTotalCount() / seconds,
+                latencies.getValueAtPercentile(50) / 1000.0, latencies.getValueAtPercentile(99) / 1000.0,
+                latencies.getValueAtPercentile(99.9) / 1000.0, latencies.getMaxValue() / 1000.0,
+                tracker.injected(), tracker.completed(), tracker.compensated(), tracker.inFlight());
+    }
+}
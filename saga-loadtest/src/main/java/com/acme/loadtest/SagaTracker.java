@@ -0,0 +1,70 @@
+package com.acme.loadtest;
+
+import com.acme.stream.order.Application.SagaListener;
+import com.acme.stream.order.Application.SagaOutcome;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Completion latency of the injected sagas: order-stream tells the tracker when a saga finished, completed or
+ * compensated, and the time from injection to then, listener and compensation included, goes into the histogram.
+ * A saga that failed and went to a retry topic is complete once one of its retries finished.
+ */
+class SagaTracker implements SagaListener {
+    private final Map<String, Long> injectedAt = new ConcurrentHashMap<>();
+    private final Recorder recorder = new Recorder(TimeUnit.MINUTES.toMicros(10), 3);
+    private final Histogram total = new Histogram(TimeUnit.MINUTES.toMicros(10), 3);
+    private final AtomicLong injected = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong compensated = new AtomicLong();
+
+    void injected(String eventId) {
+        injectedAt.put(eventId, System.nanoTime());
+        injected.incrementAndGet();
+    }
+
+    @Override
+    public void finished(String eventId, SagaOutcome outcome) {
+        var start = injectedAt.remove(eventId);
+        if (start == null) {
+            return;
+        }
+        recorder.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        completed.incrementAndGet();
+        if (outcome == SagaOutcome.COMPENSATED) {
+            compensated.incrementAndGet();
+        }
+    }
+
+    long injected() {
+        return injected.get();
+    }
+
+    long completed() {
+        return completed.get();
+    }
+
+    long compensated() {
+        return compensated.get();
+    }
+
+    long inFlight() {
+        return injectedAt.size();
+    }
+
+    /** The latencies recorded since the previous call, also accumulated into {@link #total()}. */
+    synchronized Histogram interval() {
+        var interval = recorder.getIntervalHistogram();
+        total.add(interval);
+        return interval;
+    }
+
+    synchronized Histogram total() {
+        return total;
+    }
+}
@@ -0,0 +1,74 @@
+package com.acme.loadtest;
+
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+import reactor.netty.http.server.HttpServerRequest;
+import reactor.netty.http.server.HttpServerResponse;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * In-process stand-in of payment-service or stock-service: echoes the saga request back after a latency drawn from
+ * {@code [minLatency, maxLatency]} and fails with a 500 at the configured error rate.
+ */
+class StandIn {
+    private final String path;
+    private final Profile profile;
+    private DisposableServer server;
+
+    record Profile(Duration minLatency, Duration maxLatency, double errorRate) {
+        static Profile of(String step) {
+            return new Profile(
+                    Duration.ofMillis(Long.getLong(step + ".latency-min-ms", 0)),
+                    Duration.ofMillis(Long.getLong(step + ".latency-max-ms", 50)),
+                    Double.parseDouble(System.getProperty(step + ".error-rate", "0.0")));
+        }
+
+        Duration nextLatency() {
+            var min = minLatency.toMillis();
+            var max = Math.max(min, maxLatency.toMillis());
+            return Duration.ofMillis(ThreadLocalRandom.current().nextLong(min, max + 1));
+        }
+
+        boolean fails() {
+            return ThreadLocalRandom.current().nextDouble() < errorRate;
+        }
+    }
+
+    StandIn(String path, Profile profile) {
+        this.path = path;
+        this.profile = profile;
+    }
+
+    String start() {
+        server = HttpServer.create()
+                .port(0)
+                .route(routes -> routes
+                        .post(path, this::execute)
+                        .delete(path + "/{id}", this::rollback))
+                .bindNow();
+        return "http://localhost:" + server.port();
+    }
+
+    void stop() {
+        server.disposeNow();
+    }
+
+    private Mono<Void> execute(HttpServerRequest request, HttpServerResponse response) {
+        // echoed in the format it was sent in, json or smile (saga.wire-format)
+        var contentType = request.requestHeaders().get("Content-Type", "application/json");
+        return request.receive().aggregate().asByteArray().defaultIfEmpty("{}".getBytes(StandardCharsets.UTF_8))
+                .delayUntil(body -> Mono.delay(profile.nextLatency()))
+                .flatMap(body -> profile.fails()
+                        ? response.status(500).send().then()
+                        : response.header("Content-Type", contentType).sendByteArray(Mono.just(body)).then());
+    }
+
+    private Mono<Void> rollback(HttpServerRequest request, HttpServerResponse response) {
+        return Mono.delay(profile.nextLatency())
+                .then(response.sendString(Mono.just(String.valueOf(request.param("id")))).then());
+    }
+}
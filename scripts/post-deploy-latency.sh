@@ -0,0 +1,59 @@
+#!/usr/bin/env bash
+# Latency of the first requests after a deploy, with and without the warmup: the service is recreated in docker
+# compose, and once /actuator/health/readiness is UP a burst of requests is sent to it.
+#
+#   order-service: GET /orders/{id} of a just created order, timed per request with curl
+#   order-stream:  orders created through order-service, timed by the saga's stream.order.created timer
+#
+# usage: scripts/post-deploy-latency.sh <order-service|order-stream> [requests]
+#   e.g. WARMUP_ENABLED=false scripts/post-deploy-latency.sh order-service 500
+#        WARMUP_ENABLED=true  scripts/post-deploy-latency.sh order-service 500
+set -euo pipefail
+
+SERVICE=${1:?service is required}
+REQUESTS=${2:-500}
+COMPOSE="docker-compose -f docker/docker-compose.yml"
+ORDER_SERVICE=http://localhost:9080
+declare -A PORTS=([order-service]=9080 [order-stream]=9081)
+URL=http://localhost:${PORTS[$SERVICE]:?unknown service $SERVICE}
+
+now_ms() { date +%s%3N; }
+create_order() {
+  curl -s -X POST "$ORDER_SERVICE/orders" -H 'Content-Type: application/json' \
+    -d '{"customerCode": "C001", "items": [{"sku": "S001", "barcode": "B001", "qty": 1, "amount": 1000.0}], "amount": 1000.0}'
+}
+metric() {
+  curl -s "$URL/actuator/metrics/$1" | sed -n "s/.*\"statistic\":\"$2\",\"value\":\([0-9.E-]*\).*/\1/p"
+}
+
+start=$(now_ms)
+WARMUP_ENABLED=${WARMUP_ENABLED:-true} $COMPOSE up -d --force-recreate --no-deps "$SERVICE" > /dev/null
+until [ "$(curl -s -o /dev/null -w '%{http_code}' "$URL/actuator/health/readiness")" = "200" ]; do
+  sleep 0.1
+done
+ready=$(( $(now_ms) - start ))
+warmup=$(metric app.warmup TOTAL_TIME)
+echo "$SERVICE warmup=${WARMUP_ENABLED:-true} ready_in=${ready}ms warmup_time=${warmup:-n/a}s"
+
+case "$SERVICE" in
+  order-service)
+    id=$(create_order | sed -n 's/.*"id":"\([0-9a-f]*\)".*/\1/p')
+    for _ in $(seq 1 "$REQUESTS"); do
+      curl -s -o /dev/null -w '%{time_total}\n' "$URL/orders/$id"
+    done > /tmp/post-deploy-latency.$$
+    first=$(head -1 /tmp/post-deploy-latency.$$)
+    sort -n /tmp/post-deploy-latency.$$ | awk -v first="$first" '{ t[NR] = $1 * 1000 }
+      END { printf "requests=%d first=%.1fms p50=%.1fms p99=%.1fms max=%.1fms\n",
+            NR, first * 1000, t[int(NR * 0.5)], t[int(NR * 0.99)], t[NR] }'
+    rm -f /tmp/post-deploy-latency.$$
+    ;;
+  order-stream)
+    for _ in $(seq 1 "$REQUESTS"); do
+      create_order > /dev/null
+    done
+    sleep 5
+    echo "sagas=$(metric stream.order.created COUNT) mean=$(awk "BEGIN { c = $(metric stream.order.created COUNT); printf \"%.1f\", c ? $(metric stream.order.created TOTAL_TIME) / c * 1000 : 0 }")ms" \
+         "max=$(awk "BEGIN { printf \"%.1f\", $(metric stream.order.created MAX) * 1000 }")ms"
+    echo "percentiles: curl '$URL/actuator/prometheus' | grep stream_order_created_seconds_bucket"
+    ;;
+esac
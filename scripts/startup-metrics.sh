@@ -0,0 +1,32 @@
+#!/usr/bin/env bash
+# Measure startup time, time to first request and RSS of a service image under the compose resource limits.
+#
+# usage: scripts/startup-metrics.sh <image> [probe-path] [runs]
+#   e.g. scripts/startup-metrics.sh docker-order-service
+#        scripts/startup-metrics.sh order-service-cds /actuator/info 5
+set -euo pipefail
+
+IMAGE=${1:?image is required}
+PROBE=${2:-/actuator/info}
+RUNS=${3:-3}
+PORT=${PORT:-19080}
+
+now_ms() { date +%s%3N; }
+
+for run in $(seq 1 "$RUNS"); do
+  name="startup-metrics-$$-$run"
+  start=$(now_ms)
+  docker run -d --rm --name "$name" --cpus 0.5 --memory 256m -p "$PORT:9080" \
+    -e SERVER_PORT=9080 -e LOGGING_LEVEL_ROOT=info "$IMAGE" > /dev/null
+
+  until [ "$(curl -s -o /dev/null -w '%{http_code}' "http://localhost:$PORT$PROBE")" != "000" ]; do
+    sleep 0.05
+  done
+  first_request=$(( $(now_ms) - start ))
+
+  started=$(docker logs "$name" 2>&1 | sed -n 's/.*Started Application in \([0-9.]*\) seconds.*/\1/p' | head -1)
+  rss=$(docker stats --no-stream --format '{{.MemUsage}}' "$name" | cut -d/ -f1)
+
+  echo "run=$run image=$IMAGE started_in=${started:-n/a}s first_request=${first_request}ms rss=${rss}"
+  docker stop "$name" > /dev/null
+done
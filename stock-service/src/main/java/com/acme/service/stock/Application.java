@@ -1,28 +1,64 @@
 package com.acme.service.stock;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.observation.ObservationRegistry;
 import io.micrometer.observation.ObservationTextPublisher;
 import lombok.*;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.springframework.aot.hint.annotation.RegisterReflectionForBinding;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.http.HttpStatus;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.stereotype.Service;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
 import reactor.core.observability.micrometer.Micrometer;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.Date;
 import java.util.List;
-import java.util.Random;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 import java.util.function.Supplier;
 
 @SpringBootApplication
+@EnableConfigurationProperties({Application.FaultInjectionProperties.class, StockAvailability.StockViewProperties.class,
+        Application.IdempotencyProperties.class})
+@EnableScheduling
+@RegisterReflectionForBinding({Application.Stock.class, Application.StockItem.class, StockAvailability.Availability.class,
+        StockAvailability.StockLevel.class})
 public class Application {
     public static void main(String[] args) {
-        SpringApplication.run(Application.class, args);
+        var context = SpringApplication.run(Application.class, args);
+        if (Boolean.getBoolean("app.training-run")) {
+            // AppCDS training run (see Dockerfile.cds): exit once the context is refreshed
+            System.exit(SpringApplication.exit(context));
+        }
     }
 
     @Configuration
@@ -35,33 +71,138 @@ public class Application {
 
     @RestController
     @RequiredArgsConstructor
-    @Slf4j
     static class StockController {
-        private final Supplier<Long> latency = () -> new Random().nextLong(500);
-
-        private final ObservationRegistry registry;
+        private final StockService service;
+        private final IdempotentRequests requests;
 
         @PostMapping("/stocks")
         @ResponseStatus(HttpStatus.CREATED)
-        public Mono<Stock> allocateStock(@RequestBody Stock stock) {
-            var lat = latency.get();
-            return Mono.just(stock)
-                    .doOnSuccess(o -> log.info("received allocate stock request => {}", stock))
-                    .delayElement(Duration.ofMillis(lat))
-                    .name("service.stock.allocate")
-                    .tag("latency", lat > 250 ? "high" : "low")
-                    .tap(Micrometer.observation(registry));
+        public Mono<Stock> allocateStock(@RequestBody Stock stock,
+                                         @RequestHeader(name = "x-request-id", required = false) String requestId) {
+            return requests.once("allocate-stock", requestId, () -> service.allocateStock(stock));
         }
 
         @DeleteMapping("/stocks/{id}")
         public Mono<String> cancelStock(@PathVariable("id") String id) {
-            var lat = latency.get();
-            return Mono.just(id)
+            return service.cancelStock(id);
+        }
+    }
+
+    @Service
+    @RequiredArgsConstructor
+    @Slf4j
+    static class StockService {
+        private final ObservationRegistry registry;
+        private final FaultInjector faults;
+        private final StockAvailability.StockView view;
+
+        public Mono<Stock> allocateStock(Stock stock) {
+            return Mono.fromCallable(() -> {
+                        if (stock.getId() == null) {
+                            // one reservation per order, however often its allocation is redelivered
+                            stock.setId(stock.getOrderNo() != null
+                                    ? UUID.nameUUIDFromBytes(("stock:" + stock.getOrderNo()).getBytes(StandardCharsets.UTF_8)).toString()
+                                    : UUID.randomUUID().toString());
+                        }
+                        view.reserve(stock.getId(), stock.getItems());
+                        return stock;
+                    })
+                    .doOnSuccess(o -> log.info("received allocate stock request => {}", stock))
+                    .name("service.stock.allocate")
+                    .tap(Micrometer.observation(registry))
+                    .transform(faults.inject("allocate-stock", stock.getCustomerCode()));
+        }
+
+        public Mono<String> cancelStock(String id) {
+            return Mono.fromCallable(() -> {
+                        if (!view.release(id)) {
+                            log.debug("no open reservation for stock#{}", id);
+                        }
+                        return id;
+                    })
                     .doOnSuccess(o -> log.info("received cancel stock request => {}", id))
-                    .delayElement(Duration.ofMillis(lat))
                     .name("service.stock.cancel")
-                    .tag("latency", lat > 250 ? "high" : "low")
-                    .tap(Micrometer.observation(registry));
+                    .tap(Micrometer.observation(registry))
+                    .transform(faults.inject("cancel-stock", id));
+        }
+    }
+
+    /**
+     * Saga commands from order-stream over Kafka, consumed while {@code saga.messaging.enabled} is set. A polled
+     * batch is handled with up to {@code saga.messaging.concurrency} commands in flight, and each command is answered
+     * on the topic of its {@code kafka_replyTopic} header with its correlation id and a status.
+     */
+    @Component
+    @Slf4j
+    static class StockCommandHandler {
+        private final ObjectMapper mapper;
+        private final StockService service;
+        private final IdempotentRequests requests;
+        private final KafkaTemplate<String, String> template;
+        private final int concurrency;
+
+        StockCommandHandler(ObjectMapper mapper, StockService service, IdempotentRequests requests,
+                            KafkaTemplate<String, String> template, @Value("${saga.messaging.concurrency:16}") int concurrency) {
+            this.mapper = mapper;
+            this.service = service;
+            this.requests = requests;
+            this.template = template;
+            this.concurrency = concurrency;
+        }
+
+        @KafkaListener(id = "stock-command", topics = "${saga.messaging.command-topic:stock.command}", batch = "true",
+                autoStartup = "${saga.messaging.enabled:false}")
+        public void onCommands(List<ConsumerRecord<String, String>> commands) {
+            log.debug("received {} stock command(s)", commands.size());
+            Flux.fromIterable(commands)
+                    .flatMap(this::handle, concurrency)
+                    .then()
+                    .block();
+        }
+
+        private Mono<Void> handle(ConsumerRecord<String, String> command) {
+            var action = header(command, "saga-action");
+            Mono<String> result = switch (String.valueOf(action)) {
+                case "execute" -> Mono.fromCallable(() -> mapper.readValue(command.value(), Stock.class))
+                        .flatMap(o -> requests.once("allocate-stock", header(command, "x-request-id"), () -> service.allocateStock(o)))
+                        .map(this::write);
+                case "rollback" -> Mono.fromCallable(() -> mapper.readValue(command.value(), Stock.class))
+                        .flatMap(o -> service.cancelStock(o.getId()));
+                default -> Mono.error(new IllegalArgumentException("unknown saga action: " + action));
+            };
+            return result
+                    .map(body -> reply(command, "ok", body, null))
+                    .onErrorResume(e -> Mono.just(reply(command, "error", null, e.toString())))
+                    .flatMap(reply -> reply.topic() != null ? Mono.fromFuture(template.send(reply)) : Mono.empty())
+                    .then();
+        }
+
+        private String write(Object o) {
+            try {
+                return mapper.writeValueAsString(o);
+            } catch (JsonProcessingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private ProducerRecord<String, String> reply(ConsumerRecord<String, String> command, String status, String body, String error) {
+            var reply = new ProducerRecord<>(header(command, KafkaHeaders.REPLY_TOPIC), command.key(), body);
+            reply.headers().add("saga-status", status.getBytes(StandardCharsets.UTF_8));
+            for (var name : List.of("saga-correlation-id", "x-request-id")) {
+                var header = command.headers().lastHeader(name);
+                if (header != null) {
+                    reply.headers().add(name, header.value());
+                }
+            }
+            if (error != null) {
+                reply.headers().add("saga-error", error.getBytes(StandardCharsets.UTF_8));
+            }
+            return reply;
+        }
+
+        private static String header(ConsumerRecord<?, ?> record, String name) {
+            var header = record.headers().lastHeader(name);
+            return header != null ? new String(header.value(), StandardCharsets.UTF_8) : null;
         }
     }
 
@@ -88,4 +229,126 @@ public class Application {
         private String barcode;
         private Integer qty;
     }
+
+    /** Faults of {@code allocate-stock}, keyed by customerCode, and {@code cancel-stock}, keyed by stock id. */
+    @ConfigurationProperties("fault-injection")
+    record FaultInjectionProperties(boolean enabled, Map<String, Fault> endpoints) {
+        FaultInjectionProperties {
+            endpoints = endpoints != null ? endpoints : Map.of();
+        }
+    }
+
+    record Fault(LatencyDistribution distribution, Duration min, Duration max, Duration mean, double errorRate, Set<String> keys) {
+        Fault {
+            distribution = distribution != null ? distribution : LatencyDistribution.NONE;
+            min = min != null ? min : Duration.ZERO;
+            max = max != null && max.compareTo(min) > 0 ? max : min;
+            mean = mean != null ? mean : Duration.ZERO;
+            keys = keys != null ? keys : Set.of();
+        }
+
+        boolean targets(String key) {
+            return keys.isEmpty() || keys.contains(key);
+        }
+
+        Duration nextLatency(ThreadLocalRandom random) {
+            return switch (distribution) {
+                case NONE -> Duration.ZERO;
+                case FIXED -> mean;
+                case UNIFORM -> Duration.ofMillis(random.nextLong(min.toMillis(), max.toMillis() + 1));
+                case EXPONENTIAL -> {
+                    var millis = min.toMillis() + (long) (-mean.toMillis() * Math.log(1 - random.nextDouble()));
+                    yield Duration.ofMillis(max.compareTo(min) > 0 ? Math.min(millis, max.toMillis()) : millis);
+                }
+            };
+        }
+    }
+
+    enum LatencyDistribution { NONE, FIXED, UNIFORM, EXPONENTIAL }
+
+    @Component
+    @RequiredArgsConstructor
+    static class FaultInjector {
+        private final FaultInjectionProperties properties;
+        private final MeterRegistry meterRegistry;
+
+        public <T> Function<Mono<T>, Mono<T>> inject(String endpoint, String key) {
+            var fault = properties.enabled() ? properties.endpoints().get(endpoint) : null;
+            if (fault == null || !fault.targets(key)) {
+                return mono -> mono;
+            }
+            return mono -> Mono.defer(() -> {
+                var random = ThreadLocalRandom.current();
+                var latency = fault.nextLatency(random);
+                var source = random.nextDouble() < fault.errorRate()
+                        ? Mono.<T>error(() -> new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "injected fault: " + endpoint)).doOnSubscribe(s -> meterRegistry.counter("fault.injected.errors", "endpoint", endpoint).increment())
+                        : mono;
+                if (latency.isZero()) {
+                    return source;
+                }
+                return Mono.delay(latency)
+                        .doOnNext(t -> meterRegistry.timer("fault.injected.latency", "endpoint", endpoint).record(latency))
+                        .then(source);
+            });
+        }
+    }
+
+    @ConfigurationProperties("idempotency")
+    record IdempotencyProperties(@DefaultValue("true") boolean enabled, @DefaultValue("2m") Duration ttl) {}
+
+    /**
+     * Requests deduplicated by their {@code x-request-id}, such as the retried calls of the order-stream saga: a
+     * repeated id joins the pending result of the first request, or gets its result, until {@code idempotency.ttl}
+     * after the first one was received. A failed request is forgotten so that it can be retried. The ids are kept in
+     * memory like the rest of this service's state, so only the requests reaching the same instance are deduplicated.
+     */
+    @Component
+    static class IdempotentRequests {
+        private final Map<String, Request> requests = new ConcurrentHashMap<>();
+        private final IdempotencyProperties properties;
+        private final MeterRegistry meterRegistry;
+
+        IdempotentRequests(IdempotencyProperties properties, MeterRegistry meterRegistry) {
+            this.properties = properties;
+            this.meterRegistry = meterRegistry;
+            Gauge.builder("idempotency.requests", requests, Map::size).register(meterRegistry);
+        }
+
+        @SuppressWarnings("unchecked")
+        public <T> Mono<T> once(String operation, String requestId, Supplier<Mono<T>> call) {
+            if (!properties.enabled() || requestId == null) {
+                return Mono.defer(call);
+            }
+            var key = operation + ":" + requestId;
+            return Mono.defer(() -> {
+                var created = new AtomicBoolean();
+                var request = requests.computeIfAbsent(key, k -> {
+                    created.set(true);
+                    return new Request(k, call);
+                });
+                if (!created.get()) {
+                    meterRegistry.counter("idempotency.repeated", "operation", operation).increment();
+                }
+                return (Mono<T>) request.result;
+            });
+        }
+
+        @Scheduled(fixedDelayString = "${idempotency.sweep-interval:PT10S}")
+        public void sweep() {
+            var before = System.nanoTime() - properties.ttl().toNanos();
+            requests.values().removeIf(r -> r.receivedAt - before < 0);
+        }
+
+        private final class Request {
+            private final long receivedAt = System.nanoTime();
+            private final Mono<?> result;
+
+            Request(String key, Supplier<? extends Mono<?>> call) {
+                // shared by the repeated requests; the first one going away does not cancel the call
+                this.result = Mono.defer(call)
+                        .doOnError(e -> requests.remove(key, this))
+                        .cache();
+            }
+        }
+    }
 }
@@ -0,0 +1,448 @@
+package com.acme.service.stock;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Mono;
+
+import java.io.*;
+import java.time.Duration;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Availability of each sku, kept in memory so that it can be read without an allocation attempt. An allocation
+ * reserves its quantities until it is cancelled, or until {@code stock.view.reservation-ttl} has passed and it is
+ * committed: taken off the stock on hand.
+ * <p>
+ * Every change is appended to a delta log, written out every {@code stock.view.flush-interval}, and the whole view
+ * is written to a snapshot every {@code stock.view.snapshot-interval}, after which the older logs are deleted. On
+ * startup the view is the latest snapshot plus the deltas logged after it. Changes not yet flushed are lost on a
+ * crash.
+ */
+@Slf4j
+class StockAvailability {
+
+    @ConfigurationProperties("stock.view")
+    record StockViewProperties(@DefaultValue("true") boolean enabled,
+                               @DefaultValue("data/stock-view") Path directory,
+                               @DefaultValue("1000") long defaultOnHand,
+                               Map<String, Long> onHand,
+                               @DefaultValue("false") boolean enforce,
+                               @DefaultValue("10m") Duration reservationTtl) {
+        StockViewProperties {
+            onHand = onHand != null ? onHand : Map.of();
+        }
+
+        long initialOnHand(String sku) {
+            return onHand.getOrDefault(sku, defaultOnHand);
+        }
+    }
+
+    record Availability(String sku, long onHand, long reserved, long available) {}
+
+    record StockLevel(Long onHand) {}
+
+    record Level(long onHand, long reserved) {
+        Level plus(long onHand, long reserved) {
+            return new Level(this.onHand + onHand, this.reserved + reserved);
+        }
+    }
+
+    /** A change of the view, as logged; {@code seq} orders them across the logs and snapshots. */
+    sealed interface Delta permits Reserve, Release, Commit, Adjust {
+        byte RESERVE = 1, RELEASE = 2, COMMIT = 3, ADJUST = 4;
+
+        long seq();
+    }
+
+    record Reserve(long seq, String id, long at, Map<String, Long> quantities) implements Delta {}
+
+    record Release(long seq, String id) implements Delta {}
+
+    record Commit(long seq, String id) implements Delta {}
+
+    record Adjust(long seq, String sku, long onHand) implements Delta {}
+
+    @Component
+    static class StockView implements DisposableBean {
+        private static final int SNAPSHOT_MAGIC = 0x53564e31;
+        private static final Pattern SNAPSHOT = Pattern.compile("snapshot-(\\d+)\\.bin");
+        private static final Pattern DELTAS = Pattern.compile("deltas-(\\d+)\\.log");
+
+        private final StockViewProperties properties;
+        private final Map<String, Level> levels = new ConcurrentHashMap<>();
+        // open reservations in allocation order, for cancellation and commit; guarded by this
+        private final LinkedHashMap<String, Reserve> reservations = new LinkedHashMap<>();
+        private final Timer snapshotTimer;
+        // deltas not yet written out, encoded under the monitor so that the allocations never wait for the disk
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        private final DataOutputStream pendingOut = new DataOutputStream(pending);
+        // guards the delta log, taken before the monitor when both are needed
+        private final Object io = new Object();
+        private long seq;
+        private long snapshotAt = -1;
+        private DataOutputStream deltas;
+
+        StockView(StockViewProperties properties, MeterRegistry meterRegistry) throws IOException {
+            this.properties = properties;
+            this.snapshotTimer = Timer.builder("stock.view.snapshot").register(meterRegistry);
+            Gauge.builder("stock.view.skus", levels, Map::size).register(meterRegistry);
+            Gauge.builder("stock.view.reservations", this, StockView::reservations).register(meterRegistry);
+            if (properties.enabled()) {
+                Files.createDirectories(properties.directory());
+                var start = System.nanoTime();
+                var replayed = recover();
+                log.info("rebuilt stock view of {} sku(s), {} reservation(s) at #{} ({} delta(s) replayed) in {} ms",
+                        levels.size(), reservations.size(), seq, replayed, (System.nanoTime() - start) / 1_000_000);
+                synchronized (io) {
+                    deltas = open(seq);
+                }
+            }
+        }
+
+        public Availability availability(String sku) {
+            var level = levels.get(sku);
+            var onHand = level != null ? level.onHand() : properties.initialOnHand(sku);
+            var reserved = level != null ? level.reserved() : 0;
+            return new Availability(sku, onHand, reserved, Math.max(0, onHand - reserved));
+        }
+
+        /** Reserves the items of an allocation; a redelivered allocation is reserved once. */
+        public synchronized void reserve(String id, List<Application.StockItem> items) {
+            if (!properties.enabled() || reservations.containsKey(id)) {
+                return;
+            }
+            var quantities = new TreeMap<String, Long>();
+            for (var item : items != null ? items : List.<Application.StockItem>of()) {
+                if (item.getSku() != null && item.getQty() != null) {
+                    quantities.merge(item.getSku(), item.getQty().longValue(), Long::sum);
+                }
+            }
+            if (properties.enforce()) {
+                quantities.forEach((sku, qty) -> {
+                    if (availability(sku).available() < qty) {
+                        throw new ResponseStatusException(HttpStatus.CONFLICT, "insufficient stock for sku " + sku);
+                    }
+                });
+            }
+            append(new Reserve(++seq, id, System.currentTimeMillis(), quantities));
+        }
+
+        /** Releases the reservation of a cancelled allocation; false if it is unknown or already committed. */
+        public synchronized boolean release(String id) {
+            if (!properties.enabled() || !reservations.containsKey(id)) {
+                return false;
+            }
+            append(new Release(++seq, id));
+            return true;
+        }
+
+        public synchronized void onHand(String sku, long onHand) {
+            if (properties.enabled()) {
+                append(new Adjust(++seq, sku, onHand));
+            }
+        }
+
+        synchronized int reservations() {
+            return reservations.size();
+        }
+
+        private void append(Delta delta) {
+            try {
+                write(pendingOut, delta);
+            } catch (IOException e) {
+                throw new UncheckedIOException("failed to log stock delta #" + delta.seq(), e);
+            }
+            apply(delta);
+        }
+
+        private void apply(Delta delta) {
+            if (delta instanceof Reserve r) {
+                reservations.put(r.id(), r);
+                r.quantities().forEach((sku, qty) -> levels.put(sku, level(sku).plus(0, qty)));
+            } else if (delta instanceof Release r) {
+                var reserve = reservations.remove(r.id());
+                if (reserve != null) {
+                    reserve.quantities().forEach((sku, qty) -> levels.put(sku, level(sku).plus(0, -qty)));
+                }
+            } else if (delta instanceof Commit c) {
+                var reserve = reservations.remove(c.id());
+                if (reserve != null) {
+                    reserve.quantities().forEach((sku, qty) -> levels.put(sku, level(sku).plus(-qty, -qty)));
+                }
+            } else if (delta instanceof Adjust a) {
+                levels.put(a.sku(), new Level(a.onHand(), level(a.sku()).reserved()));
+            }
+            seq = delta.seq();
+        }
+
+        private Level level(String sku) {
+            var level = levels.get(sku);
+            return level != null ? level : new Level(properties.initialOnHand(sku), 0);
+        }
+
+        /** Writes the pending deltas to the log outside of the monitor, which is only held to take them. */
+        @Scheduled(fixedDelayString = "${stock.view.flush-interval:PT0.1S}")
+        public void flush() throws IOException {
+            synchronized (io) {
+                if (deltas != null) {
+                    deltas.write(drain());
+                    deltas.flush();
+                }
+            }
+        }
+
+        private synchronized byte[] drain() {
+            var bytes = pending.toByteArray();
+            pending.reset();
+            return bytes;
+        }
+
+        @Scheduled(fixedDelayString = "${stock.view.commit-interval:PT10S}")
+        public synchronized void commit() {
+            if (!properties.enabled()) {
+                return;
+            }
+            var before = System.currentTimeMillis() - properties.reservationTtl().toMillis();
+            var expired = reservations.values().stream()
+                    .takeWhile(r -> r.at() < before)
+                    .map(Reserve::id)
+                    .toList();
+            expired.forEach(id -> append(new Commit(++seq, id)));
+        }
+
+        /**
+         * Copies the view and takes the pending deltas under the monitor, then ends the delta log with them and
+         * switches to a new one, and writes the copy, outside of it. The previous snapshots and logs are only deleted
+         * once the new snapshot is in place.
+         */
+        @Scheduled(fixedDelayString = "${stock.view.snapshot-interval:PT1M}", initialDelayString = "${stock.view.snapshot-interval:PT1M}")
+        public void snapshot() throws IOException {
+            if (!properties.enabled()) {
+                return;
+            }
+            long at;
+            Map<String, Level> levels;
+            List<Reserve> reservations;
+            synchronized (io) {
+                byte[] logged;
+                synchronized (this) {
+                    if (seq == snapshotAt) {
+                        return;
+                    }
+                    at = seq;
+                    snapshotAt = seq;
+                    levels = new HashMap<>(this.levels);
+                    reservations = new ArrayList<>(this.reservations.values());
+                    logged = drain();
+                }
+                deltas.write(logged);
+                deltas.close();
+                deltas = open(at);
+            }
+            var start = System.nanoTime();
+            var dir = properties.directory();
+            var tmp = dir.resolve("snapshot-" + at + ".tmp");
+            try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeLong(at);
+                out.writeInt(levels.size());
+                for (var e : levels.entrySet()) {
+                    out.writeUTF(e.getKey());
+                    out.writeLong(e.getValue().onHand());
+                    out.writeLong(e.getValue().reserved());
+                }
+                out.writeInt(reservations.size());
+                for (var r : reservations) {
+                    write(out, r);
+                }
+            }
+            Files.move(tmp, dir.resolve("snapshot-" + at + ".bin"), StandardCopyOption.ATOMIC_MOVE);
+            for (var file : files(SNAPSHOT)) {
+                if (number(SNAPSHOT, file) < at) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            for (var file : files(DELTAS)) {
+                if (number(DELTAS, file) < at) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            snapshotTimer.record(Duration.ofNanos(System.nanoTime() - start));
+            log.debug("stock view snapshot at #{}: {} sku(s), {} reservation(s)", at, levels.size(), reservations.size());
+        }
+
+        /** Loads the latest readable snapshot and replays the deltas after it; returns the number replayed. */
+        private long recover() throws IOException {
+            var snapshots = files(SNAPSHOT);
+            Collections.reverse(snapshots);
+            for (var file : snapshots) {
+                try {
+                    load(file);
+                    break;
+                } catch (IOException e) {
+                    log.warn("skipping unreadable stock view snapshot {}: {}", file, e.toString());
+                    levels.clear();
+                    reservations.clear();
+                    seq = 0;
+                }
+            }
+            var replayed = 0L;
+            for (var file : files(DELTAS)) {
+                try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                    while (true) {
+                        var delta = read(in, in.readByte());
+                        if (delta.seq() > seq) {
+                            apply(delta);
+                            replayed++;
+                        }
+                    }
+                } catch (EOFException | UTFDataFormatException e) {
+                    // end of the log, possibly a delta torn by a crash
+                }
+            }
+            return replayed;
+        }
+
+        private void load(Path file) throws IOException {
+            try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                if (in.readInt() != SNAPSHOT_MAGIC) {
+                    throw new IOException("not a stock view snapshot");
+                }
+                var at = in.readLong();
+                for (var n = in.readInt(); n > 0; n--) {
+                    levels.put(in.readUTF(), new Level(in.readLong(), in.readLong()));
+                }
+                for (var n = in.readInt(); n > 0; n--) {
+                    var r = (Reserve) read(in, in.readByte());
+                    reservations.put(r.id(), r);
+                }
+                seq = at;
+            }
+        }
+
+        private DataOutputStream open(long at) throws IOException {
+            // the last log may end with a torn delta: never append to it
+            var file = properties.directory().resolve("deltas-" + at + ".log");
+            return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)));
+        }
+
+        private List<Path> files(Pattern pattern) throws IOException {
+            try (Stream<Path> files = Files.list(properties.directory())) {
+                return files.filter(f -> pattern.matcher(f.getFileName().toString()).matches())
+                        .sorted(Comparator.comparingLong(f -> number(pattern, f)))
+                        .collect(Collectors.toCollection(ArrayList::new));
+            }
+        }
+
+        private static long number(Pattern pattern, Path file) {
+            var m = pattern.matcher(file.getFileName().toString());
+            return m.matches() ? Long.parseLong(m.group(1)) : -1;
+        }
+
+        private static void write(DataOutputStream out, Delta delta) throws IOException {
+            if (delta instanceof Reserve r) {
+                out.writeByte(Delta.RESERVE);
+                out.writeLong(r.seq());
+                out.writeUTF(r.id());
+                out.writeLong(r.at());
+                out.writeInt(r.quantities().size());
+                for (var e : r.quantities().entrySet()) {
+                    out.writeUTF(e.getKey());
+                    out.writeLong(e.getValue());
+                }
+            } else if (delta instanceof Release r) {
+                out.writeByte(Delta.RELEASE);
+                out.writeLong(r.seq());
+                out.writeUTF(r.id());
+            } else if (delta instanceof Commit c) {
+                out.writeByte(Delta.COMMIT);
+                out.writeLong(c.seq());
+                out.writeUTF(c.id());
+            } else if (delta instanceof Adjust a) {
+                out.writeByte(Delta.ADJUST);
+                out.writeLong(a.seq());
+                out.writeUTF(a.sku());
+                out.writeLong(a.onHand());
+            }
+        }
+
+        private static Delta read(DataInputStream in, byte type) throws IOException {
+            return switch (type) {
+                case Delta.RESERVE -> {
+                    var seq = in.readLong();
+                    var id = in.readUTF();
+                    var at = in.readLong();
+                    var quantities = new TreeMap<String, Long>();
+                    for (var n = in.readInt(); n > 0; n--) {
+                        quantities.put(in.readUTF(), in.readLong());
+                    }
+                    yield new Reserve(seq, id, at, quantities);
+                }
+                case Delta.RELEASE -> new Release(in.readLong(), in.readUTF());
+                case Delta.COMMIT -> new Commit(in.readLong(), in.readUTF());
+                case Delta.ADJUST -> new Adjust(in.readLong(), in.readUTF(), in.readLong());
+                // garbage after a torn write: treated as the end of the log
+                default -> throw new EOFException("unknown stock delta type " + type);
+            };
+        }
+
+        @Override
+        public void destroy() throws IOException {
+            synchronized (io) {
+                if (deltas != null) {
+                    deltas.write(drain());
+                    deltas.close();
+                    deltas = null;
+                }
+            }
+        }
+    }
+
+    @RestController
+    @RequiredArgsConstructor
+    static class StockAvailabilityController {
+        private final StockView view;
+
+        @GetMapping("/stocks/availability/{sku}")
+        public Mono<Availability> availability(@PathVariable("sku") String sku) {
+            return Mono.fromSupplier(() -> view.availability(sku));
+        }
+
+        /** Availability of several skus at once, as {@code ?sku=S001,S002} or {@code ?sku=S001&sku=S002}. */
+        @GetMapping("/stocks/availability")
+        public Mono<List<Availability>> availability(@RequestParam("sku") List<String> skus) {
+            return Mono.fromSupplier(() -> skus.stream().distinct().map(view::availability).toList());
+        }
+
+        @PutMapping("/stocks/levels/{sku}")
+        public Mono<Availability> onHand(@PathVariable("sku") String sku, @RequestBody StockLevel level) {
+            if (level.onHand() == null || level.onHand() < 0) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "onHand must be zero or more");
+            }
+            return Mono.fromSupplier(() -> {
+                view.onHand(sku, level.onHand());
+                return view.availability(sku);
+            });
+        }
+    }
+}